@@ -0,0 +1,76 @@
+/* Author: Hua Tong
+ * Uni: ht2334
+ * */
+package Benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import Server.Server;
+
+/* Class BroadcastBenchmark
+ * One user broadcasts to everyone logged in, some of whom blocked him,
+ * until the broadcast has been written to every socket it goes to
+ *
+ * */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+	@Param({ "10", "100", "1000" })
+	public int recipients;
+
+	// the share of the recipients who blocked the sender, in percent
+	@Param({ "0", "10" })
+	public int blocked;
+
+	private ChatFixture fixture;
+	private Server.CommandHandler sender;
+	// counts the frames of all recipients
+	private AtomicLong received = new AtomicLong();
+	private int reached;
+
+	@Setup
+	public void setup() throws IOException {
+		fixture = new ChatFixture(recipients + 1);
+		sender = fixture.login(0, new AtomicLong());
+		int blockers = recipients * blocked / 100;
+		for (int user = 1; user <= recipients; user++) {
+			Server.CommandHandler handler = fixture.login(user, received);
+			if (user <= blockers) {
+				handler.block(ChatFixture.name(0));
+			}
+		}
+		reached = recipients - blockers;
+	}
+
+	@TearDown
+	public void tearDown() {
+		fixture.close();
+	}
+
+	@Benchmark
+	public long fanOut() throws IOException {
+		long expected = received.get() + reached;
+		sender.broadcast("hello everyone");
+		ChatFixture.await(received, expected);
+		return expected;
+	}
+}
@@ -0,0 +1,89 @@
+/* Author: Hua Tong
+ * Uni: ht2334
+ * */
+package Benchmark;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+
+import Server.Server;
+
+/* Class ChatFixture
+ * A server that does not listen, with users user0, user1, ... whose
+ * passwords are pw0, pw1, ... in a credential file of its own. Users log
+ * in through the same lines a persistent client sends, over MemorySockets,
+ * so they end up logged in and connected like real ones
+ *
+ * */
+public class ChatFixture {
+	public final Server server;
+	private final File dir;
+
+	public ChatFixture(int users) throws IOException {
+		dir = File.createTempFile("chat", "");
+		dir.delete();
+		dir.mkdirs();
+
+		File credentials = new File(dir, "credentials.txt");
+		PrintWriter out = new PrintWriter(new FileWriter(credentials));
+		for (int i = 0; i < users; i++) {
+			out.println(name(i) + " " + password(i));
+		}
+		out.close();
+
+		Server.Options options = new Server.Options();
+		options.credentialPath = credentials.getPath();
+		options.offlineDir = new File(dir, "offline").getPath();
+		server = new Server(options);
+	}
+
+	public static String name(int user) {
+		return "user" + user;
+	}
+
+	public static String password(int user) {
+		return "pw" + user;
+	}
+
+	// a handler for a new connection, its frames counted by frames
+	public Server.CommandHandler connect(AtomicLong frames, int port) throws IOException {
+		return server.new CommandHandler(server.new SocketConnection(new MemorySocket(frames, port)));
+	}
+
+	// log a user in on a new connection, ready for commands
+	public Server.CommandHandler login(int user, AtomicLong frames) throws IOException {
+		Server.CommandHandler handler = connect(frames, 2000 + user);
+		handler.handle("Persistent Start");
+		handler.handle("New Start");
+		handler.handle("New Start");
+		handler.handle(name(user));
+		handler.handle(password(user));
+		handler.handle("#" + (2000 + user));
+		return handler;
+	}
+
+	// wait for the writers to bring the count up to frames
+	public static void await(AtomicLong counter, long frames) {
+		while (counter.get() < frames) {
+			Thread.yield();
+		}
+	}
+
+	public void close() {
+		server.shutdown();
+		delete(dir);
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				delete(f);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,84 @@
+/* Author: Hua Tong
+ * Uni: ht2334
+ * */
+package Benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import Protocol.Frame;
+import Protocol.LegacyCodec;
+
+/* Class CommandParseBenchmark
+ * What ServerThread does with every line a logged in user sends: read it
+ * with readUTF and turn it into a Frame
+ *
+ * */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandParseBenchmark {
+	@Param({ "message", "broadcast", "online", "block", "text" })
+	public String command;
+
+	// how many words the message of message and broadcast has
+	@Param({ "8", "512" })
+	public int words;
+
+	private String line;
+	private byte[] bytes;
+
+	@Setup
+	public void setup() throws IOException {
+		StringBuilder msg = new StringBuilder();
+		for (int i = 0; i < words; i++) {
+			msg.append(i == 0 ? "" : " ").append("word").append(i);
+		}
+		if (command.equals("message")) {
+			line = "message user1 " + msg;
+		} else if (command.equals("broadcast")) {
+			line = "broadcast " + msg;
+		} else if (command.equals("online")) {
+			line = "online";
+		} else if (command.equals("block")) {
+			line = "block user1";
+		} else {
+			// not a command, the answer to a private chat request
+			line = "Y";
+		}
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new DataOutputStream(out).writeUTF(line);
+		bytes = out.toByteArray();
+	}
+
+	@Benchmark
+	public Frame decode() {
+		return LegacyCodec.decodeCommand(line);
+	}
+
+	@Benchmark
+	public Frame readAndDecode() throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+		return LegacyCodec.decodeCommand(in.readUTF());
+	}
+}
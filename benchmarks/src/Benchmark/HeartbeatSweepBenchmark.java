@@ -0,0 +1,101 @@
+/* Author: Hua Tong
+ * Uni: ht2334
+ * */
+package Benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import Server.Session;
+import Server.TimingWheel;
+
+/* Class HeartbeatSweepBenchmark
+ * The timing wheel the server keeps the heartbeats in, with the server's
+ * tick and timeout. heartbeat is what one heartbeat costs with many users
+ * in the wheel; sweep turns the wheel past the timeout of every user,
+ * logging them all out
+ *
+ * */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HeartbeatSweepBenchmark {
+	private static final long TICK = 1000;
+	private static final long TIMEOUT = 60000;
+
+	@Param({ "1000", "100000" })
+	public int users;
+
+	private Session[] sessions;
+	private TimingWheel wheel;
+	// where the wheel has been turned to
+	private long clock;
+	private int next = 0;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		sessions = new Session[users];
+		for (int i = 0; i < users; i++) {
+			sessions[i] = new Session(i, ChatFixture.name(i));
+		}
+		// the wheel is only turned by the benchmark
+		wheel = new TimingWheel(TICK, TIMEOUT) {
+			@Override
+			protected void expired(Session session) {
+				session.expire(Long.MAX_VALUE);
+			}
+		};
+		clock = System.currentTimeMillis();
+		loginAll();
+	}
+
+	// every user logs in and is put in the wheel
+	private void loginAll() {
+		for (Session session : sessions) {
+			session.login("127.0.0.1", 2000, false, false);
+			wheel.schedule(session);
+		}
+	}
+
+	/*
+	 * LoggedIn logs everyone in again before each sweep, the last one
+	 * logged them all out
+	 */
+	@State(Scope.Thread)
+	public static class LoggedIn {
+		@Setup(Level.Invocation)
+		public void setup(HeartbeatSweepBenchmark benchmark) {
+			benchmark.loginAll();
+		}
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public void heartbeat() {
+		Session session = sessions[next];
+		next = (next + 1) % users;
+		session.heartbeat();
+		wheel.schedule(session);
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public void sweep(LoggedIn loggedIn) {
+		clock = Math.max(clock, System.currentTimeMillis()) + TIMEOUT + 2 * TICK;
+		wheel.advance(clock);
+	}
+}
@@ -0,0 +1,112 @@
+/* Author: Hua Tong
+ * Uni: ht2334
+ * */
+package Benchmark;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import Server.Server;
+
+/* Class LoginBenchmark
+ * The login dialogue of a new connection up to the answer to the
+ * password, against credential files of different sizes. The users are
+ * taken in turn so the lookups do not all hit the same entry. The
+ * connection is made before and the user logged out after each login,
+ * outside the time, and what the server prints is thrown away, so the
+ * number is the login and not the console
+ *
+ * */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoginBenchmark {
+	@Param({ "1000", "100000" })
+	public int users;
+
+	private ChatFixture fixture;
+	private AtomicLong frames = new AtomicLong();
+	private String[] names;
+	private String[] passwords;
+	private int next = 0;
+	// the server prints every login, it goes here while the benchmark runs
+	private PrintStream console;
+
+	@Setup
+	public void setup() throws IOException {
+		console = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+			}
+		}));
+		fixture = new ChatFixture(users);
+		names = new String[users];
+		passwords = new String[users];
+		for (int i = 0; i < users; i++) {
+			names[i] = ChatFixture.name(i);
+			passwords[i] = ChatFixture.password(i);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		fixture.close();
+		System.setOut(console);
+	}
+
+	/*
+	 * Connection is a new connection for each login, logged out after it so
+	 * that no login finds the user logged in already
+	 */
+	@State(Scope.Thread)
+	public static class Connection {
+		private Server.CommandHandler handler;
+
+		@Setup(Level.Invocation)
+		public void setup(LoginBenchmark benchmark) throws IOException {
+			handler = benchmark.fixture.connect(benchmark.frames, 2000);
+		}
+
+		@TearDown(Level.Invocation)
+		public void tearDown() throws IOException {
+			handler.handle("logout");
+		}
+	}
+
+	@Benchmark
+	public long login(Connection connection) throws IOException {
+		int user = next;
+		next = (next + 1) % users;
+		Server.CommandHandler handler = connection.handler;
+		handler.handle("New Start");
+		handler.handle("New Start");
+		handler.handle(names[user]);
+		handler.handle(passwords[user]);
+		return frames.get();
+	}
+}
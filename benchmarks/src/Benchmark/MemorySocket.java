@@ -0,0 +1,103 @@
+/* Author: Hua Tong
+ * Uni: ht2334
+ * */
+package Benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* Class MemorySocket
+ * Stands in for the socket of a connected client, so the server can be
+ * run without the network. What the server writes is thrown away, only
+ * counted. The server buffers frames and flushes several at once, so the
+ * frames are counted by reading their lengths from the bytes written:
+ * the connections of the benchmarks speak the writeUTF lines, a 2 byte
+ * length and that many bytes. Sockets that share a counter add to the
+ * same count
+ *
+ * */
+public class MemorySocket extends Socket {
+	private final AtomicLong frames;
+	private final InetSocketAddress remote;
+	private final OutputStream output = new OutputStream() {
+		// how many bytes of the length of the next frame have been written,
+		// and the length so far
+		private int header = 0;
+		private int length = 0;
+		// the bytes of the current frame still to come
+		private int left = 0;
+
+		@Override
+		public void write(int b) {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			int end = off + len;
+			while (off < end) {
+				if (left > 0) {
+					int skip = Math.min(left, end - off);
+					off += skip;
+					left -= skip;
+					// a frame counts once it is written whole
+					if (left == 0) {
+						frames.incrementAndGet();
+					}
+					continue;
+				}
+				length = (length << 8) | (b[off++] & 0xFF);
+				if (++header == 2) {
+					left = length;
+					header = 0;
+					length = 0;
+					if (left == 0) {
+						frames.incrementAndGet();
+					}
+				}
+			}
+		}
+	};
+
+	public MemorySocket(AtomicLong frames, int port) {
+		this.frames = frames;
+		remote = new InetSocketAddress("127.0.0.1", port);
+	}
+
+	public MemorySocket() {
+		this(new AtomicLong(), 2000);
+	}
+
+	// the frames written to this socket, and the others sharing the counter
+	public long frames() {
+		return frames.get();
+	}
+
+	@Override
+	public OutputStream getOutputStream() {
+		return output;
+	}
+
+	@Override
+	public InputStream getInputStream() {
+		return new ByteArrayInputStream(new byte[0]);
+	}
+
+	@Override
+	public SocketAddress getRemoteSocketAddress() {
+		return remote;
+	}
+
+	@Override
+	public void setSoTimeout(int timeout) {
+	}
+
+	@Override
+	public void close() {
+	}
+}
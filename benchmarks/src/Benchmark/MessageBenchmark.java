@@ -0,0 +1,60 @@
+/* Author: Hua Tong
+ * Uni: ht2334
+ * */
+package Benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import Server.Server;
+
+/* Class MessageBenchmark
+ * One user sends a message to another connected user, until it has been
+ * written to the receiver's socket: the command, the outbox, and the
+ * writer that takes it out
+ *
+ * */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageBenchmark {
+	private ChatFixture fixture;
+	private Server.CommandHandler sender;
+	private AtomicLong received = new AtomicLong();
+
+	@Setup
+	public void setup() throws IOException {
+		fixture = new ChatFixture(2);
+		sender = fixture.login(0, new AtomicLong());
+		fixture.login(1, received);
+	}
+
+	@TearDown
+	public void tearDown() {
+		fixture.close();
+	}
+
+	@Benchmark
+	public long relay() throws IOException {
+		long expected = received.get() + 1;
+		sender.message(ChatFixture.name(1), "hello there");
+		ChatFixture.await(received, expected);
+		return expected;
+	}
+}
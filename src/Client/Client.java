@@ -4,11 +4,15 @@
 
 package Client;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
@@ -18,6 +22,11 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
+import Protocol.BinaryCodec;
+import Protocol.Frame;
+import Protocol.HeartbeatDatagram;
+import Protocol.LegacyCodec;
+
 public class Client {
 	// heartbeat time, unit: seconds
 	private final int HEARTBEAT_TIME = 5;
@@ -25,13 +34,32 @@ public class Client {
 	private int serverSocketPort;
 	
 	// ths ip and port of the server to connect to 
-	private String serverIP;
-	private int serverPort;
+	private volatile String serverIP;
+	private volatile int serverPort;
+	// a server of a cluster sent the login to the server of this user, the
+	// username is sent there without asking again
+	private volatile boolean redirected = false;
 	
 	// record the client's username, for consistency in non-persistent connection
 	private String username = null;
 	// record the client's status, default is false
 	private boolean login = false;
+	// keep one connection to the server open instead of reconnecting, the
+	// server then sends everything over it and never connects back
+	private boolean persistent = false;
+	// talk to the server with binary frames instead of writeUTF lines
+	private boolean binary = false;
+	// ask the server for compressed binary frames, and compress the commands
+	// once it agreed
+	private boolean compress = false;
+	private volatile boolean compressing = false;
+	// send heartbeats as udp datagrams once the server has given a token
+	private boolean udp = false;
+	// where to send the datagrams, and the user id and token of this login,
+	// the port is 0 until the server sends them
+	private volatile int udpPort = 0;
+	private volatile int udpId;
+	private volatile long udpToken;
 	
 	// record other users' ip and port information for private chat
 	private Map<String, String> userIP;
@@ -46,9 +74,25 @@ public class Client {
 	// constructor
 	// read in server's IP address and port number
 	public Client(String ip, int port) {
+		this(ip, port, false, false);
+	}
+
+	public Client(String ip, int port, boolean persistent, boolean binary) {
+		this(ip, port, persistent, binary, false);
+	}
+
+	public Client(String ip, int port, boolean persistent, boolean binary, boolean udp) {
+		this(ip, port, persistent, binary, udp, false);
+	}
+
+	public Client(String ip, int port, boolean persistent, boolean binary, boolean udp, boolean compress) {
 		try {
 			serverIP = ip;
 			serverPort = port;
+			this.persistent = persistent;
+			this.binary = binary;
+			this.udp = udp;
+			this.compress = binary && compress;
 			Socket clientSocket = new Socket(ip, port);
 			// for input, output from server
 			
@@ -60,7 +104,7 @@ public class Client {
 			// create a new thread to get info from keyboard
 			keyboardThread = new KeyboardOutThread(clientSocket);
 
-			DataOutputStream output = new DataOutputStream(clientSocket.getOutputStream());
+			DataOutputStream output = buffered(clientSocket);
 			
 			new Heartbeat();
 			
@@ -70,10 +114,26 @@ public class Client {
 			
 			lastCommand = "";
 			
+			// ask the server for the binary protocol, everything after this line is binary
+			if (binary) {
+				output.writeUTF(LegacyCodec.HELLO + BinaryCodec.VERSION);
+			}
+			// ask for compressed frames
+			if (this.compress) {
+				writeFrame(output, Frame.of(Frame.COMPRESS), null);
+			}
+			// ask the server not to time this connection out
+			if (persistent) {
+				writeFrame(output, Frame.of(Frame.PERSISTENT), "Persistent Start");
+			}
+			// ask for a token to send heartbeats as datagrams
+			if (udp) {
+				writeFrame(output, Frame.of(Frame.UDP_HEARTBEAT), "Heartbeat UDP");
+			}
 			// to keep a format
-			output.writeUTF("New Start");
-			output.flush();
-			output.writeUTF("New Start");
+			writeFrame(output, Frame.of(Frame.NEW_START), "New Start");
+			writeFrame(output, Frame.of(Frame.NEW_START), "New Start");
+			// the whole start in one packet
 			output.flush();
 			
 		} catch (UnknownHostException e) {
@@ -83,6 +143,21 @@ public class Client {
 		}
 	}
 	
+	// write to the server, as a binary frame or as the line of the old protocol.
+	// It is sent with the next flush
+	private void writeFrame(DataOutputStream out, Frame frame, String lines) throws IOException {
+		if (binary) {
+			out.write(BinaryCodec.encode(frame));
+		} else {
+			out.writeUTF(lines);
+		}
+	}
+
+	// what is written to the socket goes out when it is flushed
+	private static DataOutputStream buffered(Socket socket) throws IOException {
+		return new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+	}
+	
 	/*
 	 * ServerSocketThread extends Thread is nested under Client because it
 	 * belongs to client and only used by client 
@@ -118,6 +193,8 @@ public class Client {
 						DataInputStream in = new DataInputStream(socket.getInputStream());
 						String lines = in.readUTF();
 						boolean isPrivate = false;
+						// the server calls binary clients in binary
+						boolean binaryServer = lines.equals(LegacyCodec.HELLO + BinaryCodec.VERSION);
 						
 						// if the request is send from another user
 						if (lines != null && lines.length() > 0){
@@ -131,7 +208,7 @@ public class Client {
 						}
 						
 						// create a new thread for this line
-						new ServerInThread(socket);
+						new ServerInThread(socket, binaryServer);
 					}
 				} catch (IOException e) {
 					e.printStackTrace();
@@ -150,11 +227,18 @@ public class Client {
 		Socket socket;
 		DataInputStream in;
 		DataOutputStream out;
+		// the server sends binary frames on this socket
+		boolean binary;
 
 		public ServerInThread(Socket socket) throws IOException {
+			this(socket, false);
+		}
+
+		public ServerInThread(Socket socket, boolean binary) throws IOException {
 			this.socket = socket;
+			this.binary = binary;
 			in = new DataInputStream(socket.getInputStream());
-			out = new DataOutputStream(socket.getOutputStream());
+			out = buffered(socket);
 			start();
 		}
 
@@ -164,53 +248,105 @@ public class Client {
 			boolean isRunning = true;
 			try {
 				while (isRunning) {
-					String lines = in.readUTF();
-					lastCommand = lines;
-					if (lines != null && lines.length() > 0){
-						// server send logged in username to this client to keep a seperate record
-						if (lines.charAt(0) == '*') {
-							username = lines.substring(1);
-							login = true;
-							out.writeUTF("#" + serverSocketPort);
-							out.flush();
-						} 
-						else if (lines.equals("logout")){
-							out.close();
-							in.close();
-							socket.close();
-							System.exit(0);
+					Frame frame;
+					if (binary) {
+						// compressed frames only come if the client asked for them
+						frame = BinaryCodec.read(in, compress);
+					} else {
+						String lines = in.readUTF();
+						// the server agreed to the binary protocol
+						if (lines.equals(LegacyCodec.HELLO_OK + BinaryCodec.VERSION)) {
+							binary = true;
+							continue;
 						}
-						else if (lines.equals("disconnect")){
-							keyboardThread.closeOut();
-							out.close();
-							in.close();
-							socket.close();
-							
+						frame = LegacyCodec.decodeServer(lines);
+					}
+					lastCommand = frame.opcode == Frame.TEXT ? frame.text : "";
+
+					switch (frame.opcode) {
+					// server send logged in username to this client to keep a seperate record
+					case Frame.LOGGED_IN:
+						username = frame.user;
+						login = true;
+						writeFrame(out, new Frame(Frame.SERVER_PORT, null, null, serverSocketPort), "#" + serverSocketPort);
+						out.flush();
+						break;
+					case Frame.LOGOUT:
+						out.close();
+						in.close();
+						socket.close();
+						System.exit(0);
+						break;
+					case Frame.DISCONNECT:
+						keyboardThread.closeOut();
+						out.close();
+						in.close();
+						socket.close();
+						break;
+					// server sends the information of another client's socket
+					// store this info
+					case Frame.ADDRESS:
+						userIP.put(frame.user, frame.text);
+						userPort.put(frame.user, frame.number);
+						System.out.println("Address is stored");
+						break;
+					// get consent
+					case Frame.CONSENT:
+						if (frame.number == 1){
+							consent.put(frame.user, true);
+							System.out.println(frame.user + " accepted private chat. Please enter 'chatnow' to resend your message");
+						}else{
+							consent.put(frame.user, false);
+							System.out.println(frame.user + " declined private chat.");
 						}
-						// server sends the information of another client's socket
-						// store this info
-						else if (lines.charAt(0) == '#'){
-							lines = lines.substring(1);
-							String[] info = lines.split("\\s");
-	
-							userIP.put(info[0], info[1]);
-							userPort.put(info[0], Integer.valueOf(info[2]));
-							System.out.println("Address is stored");
+						break;
+					// the user lives on another server of the cluster, log in there
+					case Frame.REDIRECT:
+						serverIP = frame.text;
+						serverPort = frame.number;
+						redirected = true;
+						Socket redirect = new Socket(serverIP, serverPort);
+						new ServerInThread(redirect);
+						keyboardThread.setSocket(redirect);
+						DataOutputStream redirectOut = buffered(redirect);
+						if (binary) {
+							redirectOut.writeUTF(LegacyCodec.HELLO + BinaryCodec.VERSION);
 						}
-						// get consent
-						else if (lines.charAt(0) == '$'){
-							lines = lines.substring(1);
-							String[] info = lines.split("\\s");
-							if (info[0].equals("Yes")){
-								consent.put(info[1], true);
-								System.out.println(info[0] + " accepted private chat. Please enter 'chatnow' to resend your message");
-							}else{
-								consent.put(info[1], false);
-								System.out.println(info[1] + " declined private chat.");
-							}
+						// the other server agrees to compression again
+						if (compress) {
+							compressing = false;
+							writeFrame(redirectOut, Frame.of(Frame.COMPRESS), null);
+						}
+						if (persistent) {
+							writeFrame(redirectOut, Frame.of(Frame.PERSISTENT), "Persistent Start");
+						}
+						if (udp) {
+							writeFrame(redirectOut, Frame.of(Frame.UDP_HEARTBEAT), "Heartbeat UDP");
 						}
-						else {
-							System.out.println(lines);
+						writeFrame(redirectOut, Frame.of(Frame.NEW_START), "New Start");
+						writeFrame(redirectOut, Frame.of(Frame.NEW_START), "New Start");
+						redirectOut.flush();
+						keyboardThread.send(frame.user);
+						break;
+					// the server agreed to compressed frames
+					case Frame.COMPRESS:
+						compressing = true;
+						break;
+					// the server takes heartbeats as datagrams
+					case Frame.HEARTBEAT_TOKEN:
+						String[] token = frame.text.split(" ");
+						udpId = Integer.parseInt(token[0]);
+						udpToken = Long.parseUnsignedLong(token[1], 16);
+						udpPort = frame.number;
+						break;
+					default:
+						// the username has been sent already
+						if (redirected && "Username: ".equals(frame.text)) {
+							redirected = false;
+							break;
+						}
+						if (frame.text != null && frame.text.length() > 0) {
+							System.out.println(frame.text);
 						}
 					}
 
@@ -241,7 +377,7 @@ public class Client {
 		
 		public KeyboardOutThread(Socket socket) throws IOException {
 			this.socket = socket;
-			out = new DataOutputStream(socket.getOutputStream());
+			out = buffered(socket);
 			reader = new BufferedReader(new InputStreamReader(System.in));
 			privateChat = new HashMap<String, Socket>();
 			
@@ -251,7 +387,7 @@ public class Client {
 		// to set the socket or private socket
 		public void setSocket(Socket socket) throws IOException {
 			this.socket = socket;
-			out = new DataOutputStream(socket.getOutputStream());
+			out = buffered(socket);
 			
 		}
 		
@@ -263,6 +399,22 @@ public class Client {
 		public void closeOut() throws IOException{
 			out.close();
 		}
+
+		// write one line to the server, the heartbeat shares the connection in persistent mode
+		public synchronized void send(String lines) throws IOException {
+			if (!binary) {
+				out.writeUTF(lines);
+				out.flush();
+				return;
+			}
+			// binary clients read the command themselves, the login dialogue is sent as it is
+			Frame frame = login ? LegacyCodec.decodeCommand(lines) : Frame.line(lines);
+			if (frame.opcode == Frame.USAGE) {
+				System.out.println(frame.text);
+				return;
+			}
+			BinaryCodec.write(out, frame, compressing);
+		}
 		
 		@Override
 		public void run() {
@@ -294,98 +446,94 @@ public class Client {
 				}
 				
 				// deal with private chat situation
-				if (lines.contains(" ")){
-					String[] info = lines.split("\\s+");
-					
-					if (info[0].equals("private") && info.length > 2){
+				Frame command = LegacyCodec.decodeCommand(lines);
+				if (command.opcode == Frame.PRIVATE) {
+					String peer = command.user;
+					// directly send message if the socket to the other user is open
+					if (privateChat.containsKey(peer)){
+						Socket socket = privateChat.get(peer);
+						DataOutputStream privateOut;
 						
-						// directly send message if the socket to the other user is open
-						if (privateChat.containsKey(info[1])){
-							Socket socket = privateChat.get(info[1]);
-							DataOutputStream privateOut;
-							
+						try {
+							privateOut = new DataOutputStream(socket.getOutputStream());
+						
+							privateOut.writeUTF(peer + ": " + command.text);
+							privateOut.flush();
+
+						} catch (IOException e) {
+							e.printStackTrace();
+						}
+						continue;
+
+					}
+					else {
+						// if don't have ip information of the other user
+						if (!userIP.containsKey(peer)){
+							System.out.println("Do: getaddress <user>");
+							continue;
+						}
+						if (!consent.containsKey(peer)){
+							consent.put(peer, false);
+							msgBeforeConsent = lines;
+						}
+						else if (consent.get(peer)){
+							// create a socket to connect to the other client
+							Socket socket;
 							try {
-								privateOut = new DataOutputStream(socket.getOutputStream());
-							
-								String msg = "";
-								for (int i = 2; i < info.length; i++){
-									msg += info[i] + " ";
-								}
-							
-								privateOut.writeUTF(info[1] + ": " + msg);
+								socket = new Socket(userIP.get(peer), userPort.get(peer));
+								DataOutputStream privateOut = new DataOutputStream(socket.getOutputStream());
+								// indicate this connection is from a user
+								privateOut.writeUTF("*" + username);
 								privateOut.flush();
-
+								
+								privateOut.writeUTF(peer + ": " + command.text);
+								privateOut.flush();
+								
+								// add this socket to keyboard thread
+								addPrivate(peer, socket);
+								// create a new thread to get info from that client
+								new ServerInThread(socket);
+								
+								
+							} catch (UnknownHostException e) {
+								e.printStackTrace();
 							} catch (IOException e) {
 								e.printStackTrace();
 							}
 							continue;
-
 						}
-						else {
-							// if don't have ip information of the other user
-							if (!userIP.containsKey(info[1])){
-								System.out.println("Do: getaddress <user>");
-								continue;
-							}
-							if (!consent.containsKey(info[1])){
-								consent.put(info[1], false);
-								msgBeforeConsent = lines;
-							}
-							else if (consent.get(info[1])){
-								// create a socket to connect to the other client
-								Socket socket;
-								try {
-									socket = new Socket(userIP.get(info[1]), userPort.get(info[1]));
-									DataOutputStream privateOut = new DataOutputStream(socket.getOutputStream());
-									// indicate this connection is from a user
-									privateOut.writeUTF("*" + username);
-									privateOut.flush();
-									
-									String msg = "";
-									for (int i = 2; i < info.length; i++){
-										msg += info[i] + " ";
-									}
-									
-									privateOut.writeUTF(info[1] + ": " + msg);
-									privateOut.flush();
-									
-									// add this socket to keyboard thread
-									addPrivate(info[1], socket);
-									// create a new thread to get info from that client
-									new ServerInThread(socket);
-									
-									
-								} catch (UnknownHostException e) {
-									e.printStackTrace();
-								} catch (IOException e) {
-									e.printStackTrace();
-								}
-								continue;
-							}
-						}
-							
 					}
-						
-					
 				}
 				// if not private command, send to server
 				try{
-					out.writeUTF(lines);
-					out.flush();
+					send(lines);
 				} catch (IOException e) {
 					// if not connected, create a new socket to connect to server
 					try {
 						Socket socket = new Socket(serverIP, serverPort);
-						out = new DataOutputStream(socket.getOutputStream());
+						out = buffered(socket);
 						
 						// create a new thread to get info from server
 						new ServerInThread(socket);
 						
+						// the start goes out with the command
+						if (binary) {
+							out.writeUTF(LegacyCodec.HELLO + BinaryCodec.VERSION);
+						}
+						if (compress) {
+							writeFrame(out, Frame.of(Frame.COMPRESS), null);
+						}
+						if (persistent) {
+							writeFrame(out, Frame.of(Frame.PERSISTENT), "Persistent Start");
+						}
+						if (udp) {
+							writeFrame(out, Frame.of(Frame.UDP_HEARTBEAT), "Heartbeat UDP");
+						}
 						if (login) {
-							out.writeUTF("*" + username);
-							out.flush();
+							writeFrame(out, Frame.user(Frame.RESUME, username), "*" + username);
 							
 							if (lastCommand == "Do you accept the request? (Y/N)"){
+								out.flush();
 								try {
 									DataOutputStream privateOut = new DataOutputStream(privateChat.get("server").getOutputStream());
 								
@@ -398,12 +546,11 @@ public class Client {
 								
 							}
 							else{
-								out.writeUTF(lines);
-								out.flush();	
+								send(lines);
 							}
 							
 						} else {
-							out.writeUTF("New Start");
+							writeFrame(out, Frame.of(Frame.NEW_START), "New Start");
 							out.flush();
 						}
 						
@@ -425,11 +572,34 @@ public class Client {
 	 * LIVE signal to the server every 30 seconds
 	 */
 	public class Heartbeat extends Thread{
+		// sends the datagrams, opened with the first one
+		private DatagramSocket datagramSocket;
+
 		public Heartbeat() {
 			ScheduledExecutorService exec = Executors.newSingleThreadScheduledExecutor();
 			exec.scheduleAtFixedRate(new Runnable() {
 				@Override
 				public void run() {
+					// a datagram needs no connection, tcp is only used if it can't be sent
+					if (udpPort != 0 && login) {
+						try {
+							sendDatagram();
+							return;
+						} catch (IOException e) {
+							udpPort = 0;
+						}
+					}
+					// in persistent mode the heartbeat goes over the open connection
+					if (persistent) {
+						if (login) {
+							try {
+								keyboardThread.send("LIVE " + username);
+							} catch (IOException e) {
+								// the keyboard thread reconnects with the next command
+							}
+						}
+						return;
+					}
 					try {
 						Socket socket = new Socket(serverIP, serverPort);
 						DataOutputStream output = new DataOutputStream(socket.getOutputStream());
@@ -444,12 +614,40 @@ public class Client {
 				}
 			}, 0, HEARTBEAT_TIME, TimeUnit.SECONDS);
 		}
+
+		private void sendDatagram() throws IOException {
+			if (datagramSocket == null) {
+				datagramSocket = new DatagramSocket();
+			}
+			byte[] data = HeartbeatDatagram.encode(udpId, udpToken);
+			datagramSocket.send(new DatagramPacket(data, data.length, InetAddress.getByName(serverIP), udpPort));
+		}
 		
 	}
 	
 	public static void main(String args[]) {
 
-		new Client(args[0], Integer.parseInt(args[1]));
+		// "-persistent" after the port keeps one connection to the server open,
+		// "-binary" talks to the server with binary frames, "-udp" sends the
+		// heartbeats as datagrams if the server takes them, "-compress" talks
+		// binary with compressed frames
+		boolean persistent = false;
+		boolean binary = false;
+		boolean udp = false;
+		boolean compress = false;
+		for (int i = 2; i < args.length; i++) {
+			if (args[i].equals("-persistent")) {
+				persistent = true;
+			} else if (args[i].equals("-binary")) {
+				binary = true;
+			} else if (args[i].equals("-udp")) {
+				udp = true;
+			} else if (args[i].equals("-compress")) {
+				binary = true;
+				compress = true;
+			}
+		}
+		new Client(args[0], Integer.parseInt(args[1]), persistent, binary, udp, compress);
 
 
 	}
@@ -0,0 +1,105 @@
+/* Author: Hua Tong
+ * Uni: ht2334
+ * */
+package Load;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/* Class Latency
+ * Counts durations in buckets fine enough to read percentiles from: every
+ * power of two of nanoseconds is cut into 16 buckets, so a percentile is
+ * off by at most 1/16 of its value. Recording is two atomic adds, so the
+ * reader threads of all simulated users can share one
+ *
+ * */
+public class Latency {
+	// buckets per power of two
+	private static final int SUB_BUCKETS = 16;
+	private static final int SUB_BITS = 4;
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong max = new AtomicLong();
+
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		counts.incrementAndGet(bucket(nanos));
+		long old = max.get();
+		while (nanos > old && !max.compareAndSet(old, nanos)) {
+			old = max.get();
+		}
+	}
+
+	public long max() {
+		return max.get();
+	}
+
+	// a copy of the counts, to take the durations of a period out of later ones
+	public long[] counts() {
+		long[] copy = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			copy[i] = counts.get(i);
+		}
+		return copy;
+	}
+
+	// the counts recorded since an earlier copy
+	public static long[] since(long[] now, long[] before) {
+		long[] counts = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = now[i] - before[i];
+		}
+		return counts;
+	}
+
+	public static long total(long[] counts) {
+		long total = 0;
+		for (long count : counts) {
+			total += count;
+		}
+		return total;
+	}
+
+	// the duration p (0 to 1) of the counted ones are not longer than, in
+	// nanoseconds, 0 if nothing was counted
+	public static long percentile(long[] counts, double p) {
+		long total = total(counts);
+		if (total == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(p * total);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= Math.max(rank, 1)) {
+				return upper(i);
+			}
+		}
+		return upper(BUCKETS - 1);
+	}
+
+	// values below 16 have a bucket each, the others go by their highest bit
+	// and the 4 bits after it
+	private static int bucket(long nanos) {
+		if (nanos < SUB_BUCKETS) {
+			return (int) nanos;
+		}
+		int high = 63 - Long.numberOfLeadingZeros(nanos);
+		int sub = (int) (nanos >>> (high - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (high - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	// the largest value of a bucket
+	private static long upper(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int high = bucket / SUB_BUCKETS + SUB_BITS - 1;
+		long sub = bucket % SUB_BUCKETS;
+		long lowest = (SUB_BUCKETS + sub) << (high - SUB_BITS);
+		return lowest + (1L << (high - SUB_BITS)) - 1;
+	}
+}
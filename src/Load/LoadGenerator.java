@@ -0,0 +1,877 @@
+/* Author: Hua Tong
+ * Uni: ht2334
+ * */
+package Load;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import Protocol.BinaryCodec;
+import Protocol.Frame;
+import Protocol.LegacyCodec;
+
+/* Class LoadGenerator
+ * Drives many simulated users against a running server, without keyboard
+ * or screen. Each user speaks the client's protocol on its own socket:
+ * it logs in, sends heartbeats, and reads everything the server sends on
+ * a thread of its own. A few driver threads send the commands of the
+ * workload at a given rate, picked from a mix of direct messages,
+ * broadcasts, online polls, login churn (logout and login again) and
+ * idling until the server times the connection out. Messages carry the
+ * time they were sent, so the receiver records how long the delivery
+ * took; at the end the throughput and the percentiles are printed.
+ *
+ * Most users keep one connection open like a client started with
+ * -persistent. The users that idle connect like the default client: the
+ * server times them out, reaches them through their server socket and
+ * they reconnect with their next command
+ *
+ * */
+public class LoadGenerator {
+	// heartbeat time, the same as the client's, unit: milliseconds
+	private final int HEARTBEAT_TIME = 5000;
+	// how long a login may take before it counts as failed
+	private final int LOGIN_TIMEOUT = 10000;
+	// how long to wait for the messages still on their way once the run is over
+	private final int DRAIN_TIME = 3000;
+	// how many users a driver looks at to find one that is free
+	private final int PICK_TRIES = 8;
+	// the stack of the threads reading for the users, there are many of them
+	private final long READER_STACK = 256 * 1024;
+	// a message body starts with this and the time it was sent
+	private static final String STAMP = "~";
+
+	// the operations of the workload
+	public static final int MESSAGE = 0;
+	public static final int BROADCAST = 1;
+	public static final int ONLINE = 2;
+	public static final int CHURN = 3;
+	public static final int IDLE = 4;
+	public static final String[] OPERATIONS = { "message", "broadcast", "online", "churn", "idle" };
+
+	// what a simulated user is doing
+	private static final int OFFLINE = 0;
+	private static final int ONLINE_USER = 1;
+	// left alone until the server times its connection out
+	private static final int RESTING = 2;
+
+	private Options options;
+	private SimUser[] users;
+	// the users that connect like the default client, the only ones that idle
+	private SimUser[] reconnecting;
+	// the payload after the time in every message
+	private String padding;
+
+	// sends the heartbeats and prints the reports
+	private ScheduledExecutorService timers;
+	// logs users in, all of them at the start and the churned ones later
+	private ExecutorService logins;
+	// creates the small threads the users read on
+	private ThreadFactory readers;
+
+	// how long a message took from the sender's command to the receiver's socket
+	private Latency delivery = new Latency();
+	// from opening the connection to the server saying the user is logged in
+	private Latency login = new Latency();
+	// the operations sent, by operation
+	private AtomicLong[] sent = new AtomicLong[OPERATIONS.length];
+	// the deliveries the server should make for what was sent
+	private AtomicLong expected = new AtomicLong();
+	private AtomicLong delivered = new AtomicLong();
+	// messages that came with the offline messages of a login
+	private AtomicLong deliveredOffline = new AtomicLong();
+	// every frame the users read
+	private AtomicLong frames = new AtomicLong();
+	// connections the server timed out, and the reconnects that followed
+	private AtomicLong timeouts = new AtomicLong();
+	private AtomicLong reconnects = new AtomicLong();
+	// logins that failed, connections lost, and operations with no free user
+	private AtomicLong loginFailures = new AtomicLong();
+	private AtomicLong lost = new AtomicLong();
+	private AtomicLong skipped = new AtomicLong();
+	// how many users are logged in
+	private AtomicInteger onlineUsers = new AtomicInteger();
+
+	public LoadGenerator(Options options) {
+		this.options = options;
+		for (int i = 0; i < sent.length; i++) {
+			sent[i] = new AtomicLong();
+		}
+		StringBuilder pad = new StringBuilder();
+		while (pad.length() < options.size) {
+			pad.append('x');
+		}
+		padding = pad.toString();
+
+		readers = new ThreadFactory() {
+			private AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(null, r, "reader-" + count.incrementAndGet(), READER_STACK);
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+		timers = Executors.newScheduledThreadPool(2, daemons("timer"));
+		logins = Executors.newFixedThreadPool(options.loginThreads, daemons("login"));
+
+		// the last users are the ones that reconnect
+		users = new SimUser[options.users];
+		int persistent = options.users - options.users * options.reconnecting / 100;
+		List<SimUser> others = new ArrayList<SimUser>();
+		for (int i = 0; i < users.length; i++) {
+			users[i] = new SimUser(i, i < persistent);
+			if (i >= persistent) {
+				others.add(users[i]);
+			}
+		}
+		reconnecting = others.toArray(new SimUser[others.size()]);
+	}
+
+	private static ThreadFactory daemons(final String name) {
+		return new ThreadFactory() {
+			private AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	// log everyone in, run the workload for the duration and print what happened
+	public void run() throws InterruptedException {
+		System.out.println("Logging in " + users.length + " users (" + reconnecting.length + " reconnecting)");
+		final CountDownLatch ready = new CountDownLatch(users.length);
+		for (final SimUser user : users) {
+			logins.execute(new Runnable() {
+				@Override
+				public void run() {
+					user.login();
+					ready.countDown();
+				}
+			});
+		}
+		ready.await();
+		System.out.println(onlineUsers.get() + " users logged in, " + loginFailures.get() + " failed");
+		startHeartbeats();
+
+		final long start = System.nanoTime();
+		final long end = start + TimeUnit.SECONDS.toNanos(options.duration);
+		startReports(start);
+		List<Thread> drivers = new ArrayList<Thread>();
+		for (int i = 0; i < options.drivers; i++) {
+			Thread driver = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					drive(start, end);
+				}
+			}, "driver-" + i);
+			driver.start();
+			drivers.add(driver);
+		}
+		for (Thread driver : drivers) {
+			driver.join();
+		}
+		long elapsed = System.nanoTime() - start;
+
+		// let the last messages arrive
+		long drainEnd = System.currentTimeMillis() + DRAIN_TIME;
+		while (delivered.get() < expected.get() && System.currentTimeMillis() < drainEnd) {
+			Thread.sleep(50);
+		}
+		timers.shutdownNow();
+		report(elapsed);
+	}
+
+	// send operations at this driver's share of the rate until the end
+	private void drive(long start, long end) {
+		long interval = TimeUnit.SECONDS.toNanos(1) * options.drivers / Math.max(options.rate, 1);
+		long next = start + ThreadLocalRandom.current().nextLong(Math.max(interval, 1));
+		while (true) {
+			long now = System.nanoTime();
+			if (now >= end) {
+				return;
+			}
+			if (next > now) {
+				LockSupport.parkNanos(next - now);
+				continue;
+			}
+			// an operation that is late goes out at once, the rate is kept over the run
+			next += interval;
+			operate(pick());
+		}
+	}
+
+	// an operation by the weights of the mix
+	private int pick() {
+		int total = 0;
+		for (int weight : options.mix) {
+			total += weight;
+		}
+		int n = ThreadLocalRandom.current().nextInt(Math.max(total, 1));
+		for (int op = 0; op < options.mix.length; op++) {
+			n -= options.mix[op];
+			if (n < 0) {
+				return op;
+			}
+		}
+		return MESSAGE;
+	}
+
+	private void operate(int op) {
+		SimUser user = take(op == IDLE ? reconnecting : users, op == IDLE);
+		if (user == null) {
+			skipped.incrementAndGet();
+			return;
+		}
+		try {
+			switch (op) {
+			case MESSAGE:
+				SimUser receiver = receiver(user);
+				if (receiver == null) {
+					skipped.incrementAndGet();
+					return;
+				}
+				expected.incrementAndGet();
+				user.command("message " + receiver.name + " " + STAMP + System.nanoTime() + " " + padding);
+				break;
+			case BROADCAST:
+				expected.addAndGet(onlineUsers.get() - 1);
+				user.command("broadcast " + STAMP + System.nanoTime() + " " + padding);
+				break;
+			case ONLINE:
+				user.command("online");
+				break;
+			case CHURN:
+				churn(user);
+				// the churn gives the user back once logged in again
+				user = null;
+				break;
+			case IDLE:
+				user.state = RESTING;
+				break;
+			}
+			sent[op].incrementAndGet();
+		} catch (IOException e) {
+			user.lost();
+		} finally {
+			if (user != null) {
+				user.busy.set(false);
+			}
+		}
+	}
+
+	// a logged in user no one else is using, null if none was found. Only
+	// users that have an open connection idle
+	private SimUser take(SimUser[] from, boolean connected) {
+		if (from.length == 0) {
+			return null;
+		}
+		for (int i = 0; i < PICK_TRIES; i++) {
+			SimUser user = from[ThreadLocalRandom.current().nextInt(from.length)];
+			if (user.state == ONLINE_USER && (!connected || user.own != null) && user.busy.compareAndSet(false, true)) {
+				// it may have changed before it was taken
+				if (user.state == ONLINE_USER) {
+					return user;
+				}
+				user.busy.set(false);
+			}
+		}
+		return null;
+	}
+
+	// another logged in user to send a message to
+	private SimUser receiver(SimUser sender) {
+		for (int i = 0; i < PICK_TRIES; i++) {
+			SimUser user = users[ThreadLocalRandom.current().nextInt(users.length)];
+			if (user != sender && user.state != OFFLINE) {
+				return user;
+			}
+		}
+		return null;
+	}
+
+	// log out and log in again, on the login threads so the driver goes on
+	private void churn(final SimUser user) throws IOException {
+		final SimUser.Link link = user.command("logout");
+		logins.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					// the server answers and closes the connection
+					link.closed.await(LOGIN_TIMEOUT, TimeUnit.MILLISECONDS);
+					user.login();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} finally {
+					user.busy.set(false);
+				}
+			}
+		});
+	}
+
+	// every logged in user sends a heartbeat every HEARTBEAT_TIME, spread over the interval
+	private void startHeartbeats() {
+		for (final SimUser user : users) {
+			timers.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					user.heartbeat();
+				}
+			}, ThreadLocalRandom.current().nextInt(HEARTBEAT_TIME), HEARTBEAT_TIME, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	// print the throughput and latency of each period
+	private void startReports(final long start) {
+		final long period = TimeUnit.SECONDS.toMillis(options.report);
+		timers.scheduleAtFixedRate(new Runnable() {
+			private long[] lastCounts = delivery.counts();
+			private long lastOps = 0;
+			private long lastDelivered = 0;
+
+			@Override
+			public void run() {
+				long[] counts = delivery.counts();
+				long[] recent = Latency.since(counts, lastCounts);
+				long ops = operations();
+				long done = delivered.get();
+				double seconds = options.report;
+				System.out.println(String.format(
+						"%4ds  %9.1f ops/s  %10.1f deliveries/s  p50 %s  p99 %s  p999 %s  online %d",
+						TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start),
+						(ops - lastOps) / seconds, (done - lastDelivered) / seconds,
+						millis(Latency.percentile(recent, 0.5)), millis(Latency.percentile(recent, 0.99)),
+						millis(Latency.percentile(recent, 0.999)), onlineUsers.get()));
+				lastCounts = counts;
+				lastOps = ops;
+				lastDelivered = done;
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	private long operations() {
+		long ops = 0;
+		for (AtomicLong count : sent) {
+			ops += count.get();
+		}
+		return ops;
+	}
+
+	private void report(long elapsed) {
+		double seconds = elapsed / 1e9;
+		long[] counts = delivery.counts();
+		long[] logins = login.counts();
+		System.out.println("===========================");
+		System.out.println(String.format("%d users, %d reconnecting, %.1f seconds", users.length,
+				reconnecting.length, seconds));
+		StringBuilder ops = new StringBuilder("sent:");
+		for (int op = 0; op < OPERATIONS.length; op++) {
+			ops.append(' ').append(OPERATIONS[op]).append(' ').append(sent[op].get());
+		}
+		System.out.println(ops + ", skipped " + skipped.get());
+		System.out.println(String.format("throughput: %.1f ops/s, %.1f deliveries/s, %.1f frames/s",
+				operations() / seconds, delivered.get() / seconds, frames.get() / seconds));
+		System.out.println(String.format("delivered: %d of %d expected, %d with the offline messages",
+				delivered.get(), expected.get(), deliveredOffline.get()));
+		System.out.println(String.format("delivery latency: p50 %s  p99 %s  p999 %s  max %s",
+				millis(Latency.percentile(counts, 0.5)), millis(Latency.percentile(counts, 0.99)),
+				millis(Latency.percentile(counts, 0.999)), millis(delivery.max())));
+		System.out.println(String.format("login latency (%d): p50 %s  p99 %s  p999 %s  max %s",
+				Latency.total(logins), millis(Latency.percentile(logins, 0.5)),
+				millis(Latency.percentile(logins, 0.99)), millis(Latency.percentile(logins, 0.999)),
+				millis(login.max())));
+		System.out.println(String.format("timed out %d, reconnected %d, login failures %d, connections lost %d",
+				timeouts.get(), reconnects.get(), loginFailures.get(), lost.get()));
+	}
+
+	private static String millis(long nanos) {
+		return String.format("%.3fms", nanos / 1e6);
+	}
+
+	/*
+	 * SimUser is one simulated user: its login, its connection to the
+	 * server, and for the reconnecting ones the server socket the server
+	 * reaches it through
+	 */
+	public class SimUser {
+		public final String name;
+		private final String password;
+		private final boolean persistent;
+		// set while a driver or the churn works with the user
+		private final AtomicBoolean busy = new AtomicBoolean();
+		private volatile int state = OFFLINE;
+		// the connection the user opened, null while it is not connected
+		private volatile Link own;
+		// where the server connects to, reconnecting users only
+		private ServerSocket serverSocket;
+		// the server the user logs in to, another one if a cluster sends him on
+		private volatile String host;
+		private volatile int port;
+
+		public SimUser(int index, boolean persistent) {
+			name = options.prefix + index;
+			password = options.passwordPrefix + index;
+			this.persistent = persistent;
+			host = options.host;
+			port = options.port;
+		}
+
+		// log in on a new connection, and wait until the server says so
+		public void login() {
+			long start = System.nanoTime();
+			Link link = null;
+			try {
+				if (!persistent && serverSocket == null) {
+					serverSocket = new ServerSocket(0);
+					readers.newThread(new Runnable() {
+						@Override
+						public void run() {
+							accept();
+						}
+					}).start();
+				}
+				link = start();
+				boolean named = false;
+				while (true) {
+					Frame frame = link.read();
+					if (frame == null) {
+						continue;
+					}
+					if (frame.opcode == Frame.LOGGED_IN) {
+						break;
+					}
+					// the user lives on another server of a cluster, log in there
+					if (frame.opcode == Frame.REDIRECT) {
+						link.close();
+						host = frame.text;
+						port = frame.number;
+						link = start();
+						named = false;
+						continue;
+					}
+					if ("Username: ".equals(frame.text)) {
+						// asked again, the login failed
+						if (named) {
+							throw new IOException("login refused");
+						}
+						link.send(Frame.line(name), name);
+						named = true;
+					} else if ("Password: ".equals(frame.text)) {
+						link.send(Frame.line(password), password);
+					}
+				}
+				link.socket.setSoTimeout(0);
+				int listening = serverSocket == null ? 0 : serverSocket.getLocalPort();
+				link.send(new Frame(Frame.SERVER_PORT, null, null, listening), "#" + listening);
+				login.record(System.nanoTime() - start);
+
+				own = link;
+				state = ONLINE_USER;
+				onlineUsers.incrementAndGet();
+				readers.newThread(link).start();
+			} catch (IOException e) {
+				loginFailures.incrementAndGet();
+				if (link != null) {
+					link.close();
+				}
+			}
+		}
+
+		// open a connection and start the login dialogue on it
+		private Link start() throws IOException {
+			Link link = open();
+			if (persistent) {
+				link.send(Frame.of(Frame.PERSISTENT), "Persistent Start");
+			}
+			link.send(Frame.of(Frame.NEW_START), "New Start");
+			link.send(Frame.of(Frame.NEW_START), "New Start");
+			link.socket.setSoTimeout(LOGIN_TIMEOUT);
+			return link;
+		}
+
+		// send a command, over a new connection if the server timed the last one out
+		public synchronized Link command(String lines) throws IOException {
+			Link link = own;
+			if (link == null) {
+				link = open();
+				// the server sees the user as logged in and takes the command as the first line
+				link.send(Frame.user(Frame.RESUME, name), "*" + name);
+				reconnects.incrementAndGet();
+				own = link;
+				readers.newThread(link).start();
+			}
+			link.send(link.binary ? LegacyCodec.decodeCommand(lines) : null, lines);
+			return link;
+		}
+
+		// heartbeats go over the connection of a persistent user, and on a
+		// connection of their own otherwise so that they do not keep it from
+		// timing out
+		public void heartbeat() {
+			if (state == OFFLINE) {
+				return;
+			}
+			try {
+				if (persistent) {
+					synchronized (this) {
+						Link link = own;
+						if (link != null) {
+							link.send(Frame.user(Frame.LIVE, name), "LIVE " + name);
+						}
+					}
+				} else {
+					Socket socket = new Socket(host, port);
+					DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+					out.writeUTF("LIVE" + name);
+					out.flush();
+					socket.close();
+				}
+			} catch (IOException e) {
+				// the next one may get through
+			}
+		}
+
+		// the server connects here when it has something for the user and
+		// the user is not connected
+		private void accept() {
+			while (true) {
+				try {
+					Socket socket = serverSocket.accept();
+					readers.newThread(new Link(socket, false)).start();
+				} catch (IOException e) {
+					return;
+				}
+			}
+		}
+
+		private Link open() throws IOException {
+			Link link = new Link(new Socket(host, port), true);
+			if (options.binary) {
+				link.out.writeUTF(LegacyCodec.HELLO + BinaryCodec.VERSION);
+				link.out.flush();
+				link.socket.setSoTimeout(LOGIN_TIMEOUT);
+				String answer = link.in.readUTF();
+				link.socket.setSoTimeout(0);
+				if (!answer.equals(LegacyCodec.HELLO_OK + BinaryCodec.VERSION)) {
+					link.close();
+					throw new IOException("binary protocol refused: " + answer);
+				}
+				link.binary = true;
+				if (options.compress) {
+					link.send(Frame.of(Frame.COMPRESS), null);
+					link.compress = true;
+				}
+			}
+			return link;
+		}
+
+		// the connection of the user is gone while it was logged in
+		public void lost() {
+			Link link = own;
+			if (link != null) {
+				link.close();
+			}
+		}
+
+		// a connection the user opened is closed
+		private void closed(Link link, boolean loggedOut, boolean timedOut) {
+			synchronized (this) {
+				if (own != link) {
+					return;
+				}
+				own = null;
+			}
+			if (timedOut) {
+				timeouts.incrementAndGet();
+				// idle no more, the next command reconnects
+				if (state == RESTING) {
+					state = ONLINE_USER;
+				}
+				return;
+			}
+			// closed without a logout, the user is not logged in anymore
+			if (!loggedOut) {
+				lost.incrementAndGet();
+			}
+			if (state != OFFLINE) {
+				state = OFFLINE;
+				onlineUsers.decrementAndGet();
+			}
+		}
+
+		/*
+		 * Link is one connection between the user and the server, the one the
+		 * user opened or one the server opened to it. It reads everything
+		 * the server sends on its own thread
+		 */
+		public class Link implements Runnable {
+			private final Socket socket;
+			private final DataInputStream in;
+			private final DataOutputStream out;
+			// the user opened it
+			private final boolean own;
+			// binary frames go both ways once the server agreed
+			private boolean binary = false;
+			// its binary frames are compressed
+			private boolean compress = false;
+			// counted down once the reading stopped
+			private final CountDownLatch closed = new CountDownLatch(1);
+
+			public Link(Socket socket, boolean own) throws IOException {
+				this.socket = socket;
+				this.own = own;
+				socket.setTcpNoDelay(true);
+				in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+				out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			}
+
+			// write a frame in binary mode, else the line
+			public synchronized void send(Frame frame, String lines) throws IOException {
+				if (binary) {
+					BinaryCodec.write(out, frame, compress);
+				} else {
+					out.writeUTF(lines);
+				}
+				out.flush();
+			}
+
+			// the next frame from the server, null for the line that switches to binary
+			private Frame read() throws IOException {
+				if (binary) {
+					return BinaryCodec.read(in, compress);
+				}
+				String lines = in.readUTF();
+				// the server calls binary users in binary
+				if (lines.equals(LegacyCodec.HELLO + BinaryCodec.VERSION)) {
+					binary = true;
+					return null;
+				}
+				return LegacyCodec.decodeServer(lines);
+			}
+
+			@Override
+			public void run() {
+				boolean loggedOut = false;
+				boolean timedOut = false;
+				try {
+					while (true) {
+						Frame frame = read();
+						if (frame == null) {
+							continue;
+						}
+						frames.incrementAndGet();
+						if (frame.opcode == Frame.LOGOUT) {
+							loggedOut = true;
+							break;
+						}
+						if (frame.opcode == Frame.DISCONNECT) {
+							timedOut = own;
+							break;
+						}
+						// the server does not know the user anymore
+						if ("Username: ".equals(frame.text)) {
+							break;
+						}
+						if (frame.opcode == Frame.TEXT && frame.text != null) {
+							received(frame.text);
+						}
+					}
+				} catch (EOFException e) {
+					// closed by the server
+				} catch (IOException e) {
+					// closed by the server or by us
+				}
+				close();
+				if (own) {
+					closed(this, loggedOut, timedOut);
+				}
+				closed.countDown();
+			}
+
+			public void close() {
+				try {
+					socket.close();
+				} catch (IOException e) {
+					// closed already
+				}
+			}
+		}
+	}
+
+	// a text from the server, a message if it carries the time it was sent.
+	// Offline messages come several to a frame, one per line
+	private void received(String text) {
+		if (text.indexOf('\n') < 0) {
+			long stamp = stamp(text);
+			if (stamp != 0) {
+				delivery.record(System.nanoTime() - stamp);
+				delivered.incrementAndGet();
+			}
+			return;
+		}
+		for (String line : text.split("\r\n")) {
+			if (stamp(line) != 0) {
+				deliveredOffline.incrementAndGet();
+			}
+		}
+	}
+
+	// the time in "sender: ~time padding", 0 if there is none
+	private static long stamp(String text) {
+		int at = text.indexOf(": " + STAMP);
+		if (at < 0) {
+			return 0;
+		}
+		int start = at + 2 + STAMP.length();
+		int end = start;
+		while (end < text.length() && Character.isDigit(text.charAt(end))) {
+			end++;
+		}
+		if (end == start || end - start > 19) {
+			return 0;
+		}
+		return Long.parseLong(text.substring(start, end));
+	}
+
+	// write a credentials file for the simulated users
+	public static void writeAccounts(String path, int count, String prefix, String passwordPrefix)
+			throws IOException {
+		BufferedWriter out = new BufferedWriter(new FileWriter(path));
+		try {
+			for (int i = 0; i < count; i++) {
+				out.write(prefix + i + " " + passwordPrefix + i);
+				out.newLine();
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/*
+	 * Options holds the settings given after the server's address on the command line
+	 * */
+	public static class Options {
+		public String host;
+		public int port;
+		// how many users, and how their names and passwords start, the
+		// number of the user follows
+		public int users = 100;
+		public String prefix = "load";
+		public String passwordPrefix = "pw";
+		// the share of users, in percent, that connect like the default
+		// client and idle; the others keep their connection open
+		public int reconnecting = 10;
+		// how long the workload runs and how often it is reported, in seconds
+		public int duration = 60;
+		public int report = 5;
+		// operations per second, of all drivers together, and the threads sending them
+		public int rate = 1000;
+		public int drivers = 4;
+		// the weights of message, broadcast, online, churn and idle
+		public int[] mix = { 80, 2, 5, 3, 10 };
+		// the characters after the time in every message
+		public int size = 32;
+		// talk to the server with binary frames
+		public boolean binary = false;
+		// with compressed frames
+		public boolean compress = false;
+		// how many users log in at the same time
+		public int loginThreads = 32;
+
+		// parse "-users <n>", "-prefix <name>", "-passwords <prefix>",
+		// "-reconnecting <percent>", "-duration <seconds>", "-report <seconds>",
+		// "-rate <ops>", "-drivers <n>",
+		// "-mix <message>,<broadcast>,<online>,<churn>,<idle>", "-size <chars>",
+		// "-binary", "-compress" and "-logins <n>"
+		public static Options parse(String args[], int from) {
+			Options options = new Options();
+			for (int i = from; i < args.length; i++) {
+				boolean number = i + 1 < args.length && args[i + 1].matches("[0-9]+");
+				if (args[i].equals("-users") && number) {
+					options.users = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-prefix") && i + 1 < args.length) {
+					options.prefix = args[++i];
+				} else if (args[i].equals("-passwords") && i + 1 < args.length) {
+					options.passwordPrefix = args[++i];
+				} else if (args[i].equals("-reconnecting") && number) {
+					options.reconnecting = Math.min(Integer.parseInt(args[++i]), 100);
+				} else if (args[i].equals("-duration") && number) {
+					options.duration = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-report") && number) {
+					options.report = Math.max(Integer.parseInt(args[++i]), 1);
+				} else if (args[i].equals("-rate") && number) {
+					options.rate = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-drivers") && number) {
+					options.drivers = Math.max(Integer.parseInt(args[++i]), 1);
+				} else if (args[i].equals("-mix") && i + 1 < args.length
+						&& args[i + 1].matches("[0-9]+(,[0-9]+){4}")) {
+					String[] weights = args[++i].split(",");
+					for (int op = 0; op < weights.length; op++) {
+						options.mix[op] = Integer.parseInt(weights[op]);
+					}
+				} else if (args[i].equals("-size") && number) {
+					options.size = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-binary")) {
+					options.binary = true;
+				} else if (args[i].equals("-compress")) {
+					options.binary = true;
+					options.compress = true;
+				} else if (args[i].equals("-logins") && number) {
+					options.loginThreads = Math.max(Integer.parseInt(args[++i]), 1);
+				} else {
+					System.out.println("Unknown option: " + args[i]);
+				}
+			}
+			return options;
+		}
+	}
+
+	// "accounts <file> <n> [prefix]" writes the credentials of n users for
+	// the server's -credentials, "<host> <port> [options]" runs the load
+	public static void main(String args[]) throws IOException, InterruptedException {
+		if (args.length >= 3 && args[0].equals("accounts") && args[2].matches("[0-9]+")) {
+			Options options = new Options();
+			String prefix = args.length > 3 ? args[3] : options.prefix;
+			writeAccounts(args[1], Integer.parseInt(args[2]), prefix, options.passwordPrefix);
+			return;
+		}
+		if (args.length < 2 || !args[1].matches("[0-9]+")) {
+			System.out.println("Usage: LoadGenerator accounts <file> <users> [prefix]");
+			System.out.println("       LoadGenerator <host> <port> [-users n] [-reconnecting percent]"
+					+ " [-duration s] [-rate ops] [-mix message,broadcast,online,churn,idle] ...");
+			return;
+		}
+		Options options = Options.parse(args, 2);
+		options.host = args[0];
+		options.port = Integer.parseInt(args[1]);
+		new LoadGenerator(options).run();
+		// the readers of the users are daemons, the server sees them all go
+		System.exit(0);
+	}
+}
@@ -0,0 +1,368 @@
+/* Author: Hua Tong
+ * Uni: ht2334
+ * */
+package Protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/* Class BinaryCodec
+ * Version 1 of the binary protocol. A frame is
+ *   varint length | opcode byte | payload
+ * where length counts the opcode and the payload. The payload holds, in
+ * this order and only if the opcode has them (see Frame): the user as a
+ * varint byte count and UTF-8 bytes, a varint number, and the text as raw
+ * UTF-8 up to the end of the frame.
+ * A connection that agreed to compression (see Frame.COMPRESS) may also
+ * get a frame with the opcode DEFLATED, whose payload is the varint size
+ * of a frame without its length and that frame compressed with raw
+ * Deflate. Other connections do not take them. Each one is compressed on its own, starting from a dictionary
+ * of the text chat frames are made of, so that short frames shrink too
+ * and a frame sent to many users is compressed once
+ *
+ * */
+public class BinaryCodec {
+	public static final int VERSION = 1;
+	// largest frame accepted, instead of the 64KB writeUTF allows
+	public static final int MAX_FRAME = 16 * 1024 * 1024;
+
+	// frames smaller than this are not worth compressing
+	public static final int DEFLATE_MIN = 128;
+	// what is made room for first when a frame is uncompressed, it grows as
+	// the frame does, so a size claimed in a small frame costs nothing
+	private static final int INFLATE_START = 8192;
+	// the opcode of a compressed frame, outside the opcodes of Frame
+	private static final int DEFLATED = 127;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// what the compressor starts from, the strings most likely to come up
+	// last, as Deflate finds matches closer to the end cheaper
+	private static final byte[] DICTIONARY = ("the you and that to is it for have not this with what are was but"
+			+ " just know can will all about like get so there be on at in of do go if me my your we"
+			+ " is not logged in. is not online now. Offline message send. has been blocked has been unblocked"
+			+ " Your message could not be delivered to some recipient because they blocked you"
+			+ " wants to privately chat with you. Do you accept the request? (Y/N) Private chat request sent to "
+			+ " You are not in room You joined room You left room There is no user: "
+			+ " message broadcast online block unblock logout getaddress private offline join leave room "
+			+ " hello hi thanks ok yes no lol :) ").getBytes(UTF8);
+
+	// the frames compressed, their bytes before and after, and the time
+	// spent compressing and uncompressing
+	public static final AtomicLong deflatedFrames = new AtomicLong();
+	public static final AtomicLong deflateIn = new AtomicLong();
+	public static final AtomicLong deflateOut = new AtomicLong();
+	public static final AtomicLong deflateNanos = new AtomicLong();
+	public static final AtomicLong inflateNanos = new AtomicLong();
+
+	// a compressor and an uncompressor per thread, they hold native memory
+	// and are reset for every frame
+	private static final ThreadLocal<Deflater> DEFLATERS = new ThreadLocal<Deflater>() {
+		@Override
+		protected Deflater initialValue() {
+			return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		}
+	};
+	private static final ThreadLocal<Inflater> INFLATERS = new ThreadLocal<Inflater>() {
+		@Override
+		protected Inflater initialValue() {
+			return new Inflater(true);
+		}
+	};
+
+	// the bytes of a whole frame, length included. They are shared by
+	// everyone the frame is sent to and must not be changed
+	public static byte[] encode(Frame frame) {
+		byte[] bytes = frame.binaryBytes;
+		if (bytes == null) {
+			bytes = encodeFrame(frame);
+			frame.binaryBytes = bytes;
+		}
+		return bytes;
+	}
+
+	// the bytes of a frame for a connection that takes compressed frames,
+	// compressed if that makes it smaller
+	public static byte[] encode(Frame frame, boolean compress) {
+		if (!compress) {
+			return encode(frame);
+		}
+		byte[] bytes = frame.deflatedBytes;
+		if (bytes == null) {
+			bytes = encode(frame);
+			if (bytes.length >= DEFLATE_MIN) {
+				bytes = deflate(bytes);
+			}
+			frame.deflatedBytes = bytes;
+		}
+		return bytes;
+	}
+
+	// a whole frame compressed into a DEFLATED frame, or the frame itself
+	// if it does not get smaller
+	private static byte[] deflate(byte[] frame) {
+		long start = System.nanoTime();
+		// the frame without its length
+		int skip = 0;
+		while ((frame[skip] & 0x80) != 0) {
+			skip++;
+		}
+		skip++;
+		int size = frame.length - skip;
+
+		Deflater deflater = DEFLATERS.get();
+		deflater.reset();
+		deflater.setDictionary(DICTIONARY);
+		deflater.setInput(frame, skip, size);
+		deflater.finish();
+		ByteArrayOutputStream payload = new ByteArrayOutputStream(size / 2 + 16);
+		payload.write(DEFLATED);
+		writeVarint(payload, size);
+		byte[] buffer = new byte[Math.min(size + 64, 8192)];
+		while (!deflater.finished()) {
+			int n = deflater.deflate(buffer);
+			payload.write(buffer, 0, n);
+			// no use going on once it is not smaller
+			if (payload.size() >= size) {
+				deflateNanos.addAndGet(System.nanoTime() - start);
+				return frame;
+			}
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(payload.size() + 5);
+		writeVarint(bytes, payload.size());
+		bytes.write(payload.toByteArray(), 0, payload.size());
+		byte[] deflated = bytes.toByteArray();
+		deflatedFrames.incrementAndGet();
+		deflateIn.addAndGet(frame.length);
+		deflateOut.addAndGet(deflated.length);
+		deflateNanos.addAndGet(System.nanoTime() - start);
+		return deflated;
+	}
+
+	private static byte[] encodeFrame(Frame frame) {
+		ByteArrayOutputStream payload = new ByteArrayOutputStream();
+		payload.write(frame.opcode);
+		if (Frame.HAS_USER[frame.opcode]) {
+			byte[] user = (frame.user == null ? "" : frame.user).getBytes(UTF8);
+			writeVarint(payload, user.length);
+			payload.write(user, 0, user.length);
+		}
+		if (Frame.HAS_NUMBER[frame.opcode]) {
+			writeVarint(payload, frame.number);
+		}
+		if (Frame.HAS_TEXT[frame.opcode]) {
+			byte[] text = (frame.text == null ? "" : frame.text).getBytes(UTF8);
+			payload.write(text, 0, text.length);
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(payload.size() + 5);
+		writeVarint(bytes, payload.size());
+		bytes.write(payload.toByteArray(), 0, payload.size());
+		return bytes.toByteArray();
+	}
+
+	public static void write(DataOutputStream out, Frame frame) throws IOException {
+		out.write(encode(frame));
+		out.flush();
+	}
+
+	public static void write(DataOutputStream out, Frame frame, boolean compress) throws IOException {
+		out.write(encode(frame, compress));
+		out.flush();
+	}
+
+	// read one frame, blocking until it has arrived
+	public static Frame read(DataInputStream in) throws IOException {
+		return read(in, false);
+	}
+
+	// read one frame on a connection that may have agreed to compressed frames
+	public static Frame read(DataInputStream in, boolean compressed) throws IOException {
+		int length = 0;
+		for (int shift = 0; ; shift += 7) {
+			int b = in.read();
+			if (b < 0) {
+				throw new EOFException();
+			}
+			length |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				break;
+			}
+			if (shift > 21) {
+				throw new IOException("Bad frame length");
+			}
+		}
+		checkLength(length);
+		byte[] frame = new byte[length];
+		in.readFully(frame);
+		return decode(ByteBuffer.wrap(frame), compressed);
+	}
+
+	// read one frame from a buffer that may hold only part of it. Returns
+	// null and leaves the position where it was if the frame is incomplete
+	public static Frame read(ByteBuffer in) throws IOException {
+		return read(in, false);
+	}
+
+	public static Frame read(ByteBuffer in, boolean compressed) throws IOException {
+		int start = in.position();
+		int length = 0;
+		for (int shift = 0; ; shift += 7) {
+			if (!in.hasRemaining()) {
+				in.position(start);
+				return null;
+			}
+			int b = in.get();
+			length |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				break;
+			}
+			if (shift > 21) {
+				throw new IOException("Bad frame length");
+			}
+		}
+		checkLength(length);
+		if (in.remaining() < length) {
+			in.position(start);
+			return null;
+		}
+		ByteBuffer frame = in.slice();
+		frame.limit(length);
+		in.position(in.position() + length);
+		return decode(frame, compressed);
+	}
+
+	// how many bytes the frame at the position of the buffer takes, or -1 if
+	// not even its length has arrived
+	public static int frameSize(ByteBuffer in) {
+		int length = 0;
+		int i = in.position();
+		for (int shift = 0; i < in.limit(); shift += 7) {
+			int b = in.get(i++);
+			length |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return i - in.position() + length;
+			}
+		}
+		return -1;
+	}
+
+	private static void checkLength(int length) throws IOException {
+		if (length < 1 || length > MAX_FRAME) {
+			throw new IOException("Bad frame length " + length);
+		}
+	}
+
+	// the opcode and payload of one frame, a compressed one only if the
+	// connection agreed to them
+	private static Frame decode(ByteBuffer frame, boolean compressed) throws IOException {
+		int opcode = frame.get();
+		if (opcode == DEFLATED) {
+			if (!compressed) {
+				throw new IOException("Compressed frame on a connection that did not ask for them");
+			}
+			return decode(inflate(frame), false);
+		}
+		if (!Frame.isValid(opcode)) {
+			throw new IOException("Unknown opcode " + opcode);
+		}
+		String user = null;
+		String text = null;
+		int number = 0;
+		if (Frame.HAS_USER[opcode]) {
+			int length = readVarint(frame);
+			if (length > frame.remaining()) {
+				throw new IOException("Bad user length " + length);
+			}
+			user = utf8(frame, length);
+		}
+		if (Frame.HAS_NUMBER[opcode]) {
+			number = readVarint(frame);
+		}
+		if (Frame.HAS_TEXT[opcode]) {
+			text = utf8(frame, frame.remaining());
+		}
+		return new Frame((byte) opcode, user, text, number);
+	}
+
+	// the frame in the payload of a DEFLATED frame
+	private static ByteBuffer inflate(ByteBuffer frame) throws IOException {
+		long start = System.nanoTime();
+		int size = readVarint(frame);
+		checkLength(size);
+		byte[] input = new byte[frame.remaining()];
+		frame.get(input);
+		byte[] inflated = new byte[Math.min(size, INFLATE_START)];
+		Inflater inflater = INFLATERS.get();
+		inflater.reset();
+		inflater.setDictionary(DICTIONARY);
+		inflater.setInput(input);
+		try {
+			int n = 0;
+			while (n < size) {
+				if (n == inflated.length) {
+					inflated = Arrays.copyOf(inflated, (int) Math.min(2L * inflated.length, size));
+				}
+				int more = inflater.inflate(inflated, n, inflated.length - n);
+				if (more == 0 && (inflater.finished() || inflater.needsInput())) {
+					break;
+				}
+				n += more;
+			}
+			// a compressed frame holds one plain frame
+			if (n < size || !inflater.finished() || inflated[0] == DEFLATED) {
+				throw new IOException("Bad compressed frame");
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Bad compressed frame", e);
+		}
+		inflateNanos.addAndGet(System.nanoTime() - start);
+		return ByteBuffer.wrap(inflated);
+	}
+
+	private static String utf8(ByteBuffer buffer, int length) {
+		ByteBuffer bytes = buffer.slice();
+		bytes.limit(length);
+		buffer.position(buffer.position() + length);
+		return UTF8.decode(bytes).toString();
+	}
+
+	static void writeVarint(OutputStream out, int value) {
+		try {
+			while ((value & ~0x7F) != 0) {
+				out.write((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			out.write(value);
+		} catch (IOException e) {
+			// ByteArrayOutputStream does not throw
+		}
+	}
+
+	static int readVarint(ByteBuffer in) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			if (!in.hasRemaining()) {
+				throw new IOException("Truncated varint");
+			}
+			int b = in.get();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Bad varint");
+	}
+}
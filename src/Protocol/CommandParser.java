@@ -0,0 +1,154 @@
+/* Author: Hua Tong
+ * Uni: ht2334
+ * */
+package Protocol;
+
+/* Class CommandParser
+ * Reads a command a logged in user typed into a Frame. The line is scanned
+ * once: the name of the command is looked up in a table made when the
+ * class is loaded, by its first char and then its length, without cutting
+ * it out of the line. The user and the message are taken straight out of
+ * the line, the message as it was typed from its first word to its last,
+ * instead of being split into words and joined again
+ *
+ * */
+public class CommandParser {
+	// what a command takes after its name
+	// nothing, words after the name are ignored
+	private static final int NONE = 0;
+	// exactly one word, a username
+	private static final int USER = 1;
+	// a username and a message
+	private static final int USER_TEXT = 2;
+	// a message
+	private static final int TEXT = 3;
+	// at least one word, the first is the username
+	private static final int FIRST_USER = 4;
+	// nothing or one word, kept as the text
+	private static final int WORD = 5;
+
+	private static final String[] NAMES = { "message", "broadcast", "online", "block", "unblock",
+			"getaddress", "private", "logout", "offline", "stats", "LIVE", "join", "leave", "room" };
+	private static final byte[] OPCODES = { Frame.MESSAGE, Frame.BROADCAST, Frame.ONLINE, Frame.BLOCK, Frame.UNBLOCK,
+			Frame.GETADDRESS, Frame.PRIVATE, Frame.LOGOUT, Frame.OFFLINE, Frame.STATS, Frame.LIVE, Frame.JOIN,
+			Frame.LEAVE, Frame.ROOM };
+	private static final int[] ARGS = { USER_TEXT, TEXT, WORD, USER, USER,
+			USER, USER_TEXT, NONE, NONE, NONE, FIRST_USER, USER, USER, USER_TEXT };
+	// the usage told for a command with the wrong arguments, null if the
+	// line is then just text
+	private static final String[] USAGES = { "message <user> <message>", "broadcast <message>",
+			"online [<page>|count]", "block <user>",
+			"unblock <user>", "getaddress <user>", "private <user> <message>", null, null, null, null, "join <room>",
+			"leave <room>", "room <room> <message>" };
+
+	// the commands by the first char of their name
+	private static final int[][] BY_FIRST = new int[128][];
+
+	static {
+		for (int i = 0; i < NAMES.length; i++) {
+			char first = NAMES[i].charAt(0);
+			int[] commands = BY_FIRST[first];
+			if (commands == null) {
+				commands = new int[0];
+			}
+			int[] more = new int[commands.length + 1];
+			System.arraycopy(commands, 0, more, 0, commands.length);
+			more[commands.length] = i;
+			BY_FIRST[first] = more;
+		}
+	}
+
+	public static Frame parse(String lines) {
+		if (lines.equals("New Start")) {
+			return Frame.of(Frame.NEW_START);
+		}
+
+		int end = lines.length();
+		while (end > 0 && isSpace(lines.charAt(end - 1))) {
+			end--;
+		}
+		int nameEnd = skipWord(lines, 0, end);
+		int command = find(lines, nameEnd);
+		if (command < 0) {
+			return Frame.line(lines);
+		}
+		int userStart = skipSpace(lines, nameEnd, end);
+		int userEnd = skipWord(lines, userStart, end);
+		int textStart = skipSpace(lines, userEnd, end);
+
+		byte opcode = OPCODES[command];
+		switch (ARGS[command]) {
+		case USER:
+			if (userStart == userEnd || textStart < end) {
+				return usage(command, lines);
+			}
+			return Frame.user(opcode, lines.substring(userStart, userEnd));
+		case USER_TEXT:
+			if (textStart == end) {
+				return usage(command, lines);
+			}
+			return new Frame(opcode, lines.substring(userStart, userEnd), lines.substring(textStart, end), 0);
+		case TEXT:
+			if (userStart == end) {
+				return usage(command, lines);
+			}
+			return new Frame(opcode, null, lines.substring(userStart, end), 0);
+		case WORD:
+			if (textStart < end) {
+				return usage(command, lines);
+			}
+			return new Frame(opcode, null, lines.substring(userStart, userEnd), 0);
+		case FIRST_USER:
+			if (userStart == userEnd) {
+				return usage(command, lines);
+			}
+			return Frame.user(opcode, lines.substring(userStart, userEnd));
+		default:
+			return Frame.of(opcode);
+		}
+	}
+
+	// the command whose name is the line up to nameEnd, -1 if there is none
+	private static int find(String lines, int nameEnd) {
+		if (nameEnd == 0 || lines.charAt(0) >= BY_FIRST.length) {
+			return -1;
+		}
+		int[] commands = BY_FIRST[lines.charAt(0)];
+		if (commands == null) {
+			return -1;
+		}
+		for (int command : commands) {
+			String name = NAMES[command];
+			if (name.length() == nameEnd && lines.startsWith(name)) {
+				return command;
+			}
+		}
+		return -1;
+	}
+
+	private static Frame usage(int command, String lines) {
+		if (USAGES[command] == null) {
+			return Frame.line(lines);
+		}
+		return new Frame(Frame.USAGE, null, "Wrong format, use: " + USAGES[command], 0);
+	}
+
+	private static int skipWord(String lines, int from, int end) {
+		while (from < end && !isSpace(lines.charAt(from))) {
+			from++;
+		}
+		return from;
+	}
+
+	private static int skipSpace(String lines, int from, int end) {
+		while (from < end && isSpace(lines.charAt(from))) {
+			from++;
+		}
+		return from;
+	}
+
+	// the chars \s matches
+	private static boolean isSpace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f' || c == 0x0B;
+	}
+}
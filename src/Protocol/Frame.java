@@ -0,0 +1,147 @@
+/* Author: Hua Tong
+ * Uni: ht2334
+ * */
+package Protocol;
+
+/* Class Frame
+ * One unit of the chat protocol: an opcode and the fields it uses.
+ * Lines of the old writeUTF protocol and frames of the binary protocol are
+ * both read into Frames, so server and client handle them the same way
+ *
+ * */
+public class Frame {
+	// client to server
+	// free text: a username, a password or the answer to a private chat request
+	public static final byte LINE = 1;
+	// the client thinks it is still logged in as user ("*user")
+	public static final byte RESUME = 2;
+	public static final byte NEW_START = 3;
+	public static final byte PERSISTENT = 4;
+	public static final byte LIVE = 5;
+	// the port of the client's server socket ("#port")
+	public static final byte SERVER_PORT = 6;
+	// the line asking for the binary protocol, number is the version
+	public static final byte HELLO = 7;
+	// the client would rather send its heartbeats as udp datagrams
+	public static final byte UDP_HEARTBEAT = 8;
+	// another server of the cluster opening its link, number is its node
+	// index and text the secret of the cluster
+	public static final byte PEER = 9;
+	// the client takes compressed frames (see BinaryCodec), the server sends
+	// it back when it agrees
+	public static final byte COMPRESS = 10;
+	public static final byte MESSAGE = 16;
+	public static final byte BROADCAST = 17;
+	// text is the page, "count" for the number of users only, or empty
+	public static final byte ONLINE = 18;
+	public static final byte BLOCK = 19;
+	public static final byte UNBLOCK = 20;
+	public static final byte GETADDRESS = 21;
+	public static final byte PRIVATE = 22;
+	public static final byte LOGOUT = 23;
+	// a command with the wrong number of arguments, text is how to use it
+	public static final byte USAGE = 24;
+	// the next page of offline messages
+	public static final byte OFFLINE = 25;
+	// the server's metrics, for admins
+	public static final byte STATS = 26;
+	// user is the name of a chat room, text the message for ROOM
+	public static final byte JOIN = 27;
+	public static final byte LEAVE = 28;
+	public static final byte ROOM = 29;
+
+	// server to client
+	// text to print
+	public static final byte TEXT = 32;
+	public static final byte LOGGED_IN = 33;
+	public static final byte DISCONNECT = 34;
+	// text is the ip of user, number the port
+	public static final byte ADDRESS = 35;
+	// number is 1 if user accepted the private chat
+	public static final byte CONSENT = 36;
+	// number is the udp port for heartbeats, text the user id and the token of this login in hex
+	public static final byte HEARTBEAT_TOKEN = 37;
+	// user lives on another server of the cluster, text is its ip and number its port
+	public static final byte REDIRECT = 38;
+
+	// which fields each opcode carries on the wire
+	static final boolean[] HAS_USER = new boolean[128];
+	static final boolean[] HAS_NUMBER = new boolean[128];
+	static final boolean[] HAS_TEXT = new boolean[128];
+
+	static {
+		byte[] users = { RESUME, LIVE, MESSAGE, BLOCK, UNBLOCK, GETADDRESS, PRIVATE, JOIN, LEAVE, ROOM, LOGGED_IN,
+				ADDRESS, CONSENT, REDIRECT };
+		byte[] numbers = { SERVER_PORT, HELLO, PEER, ADDRESS, CONSENT, HEARTBEAT_TOKEN, REDIRECT };
+		byte[] texts = { LINE, PEER, MESSAGE, BROADCAST, ONLINE, PRIVATE, ROOM, USAGE, TEXT, ADDRESS, HEARTBEAT_TOKEN, REDIRECT };
+		for (byte op : users) {
+			HAS_USER[op] = true;
+		}
+		for (byte op : numbers) {
+			HAS_NUMBER[op] = true;
+		}
+		for (byte op : texts) {
+			HAS_TEXT[op] = true;
+		}
+	}
+
+	public final byte opcode;
+	public final String user;
+	public final String text;
+	public final int number;
+
+	// the frame as it goes on the wire, kept by the codecs so that a frame
+	// sent to many users is encoded once. Two threads that race only
+	// encode it twice
+	volatile byte[] binaryBytes;
+	volatile byte[] legacyBytes;
+	volatile byte[] deflatedBytes;
+
+	public Frame(byte opcode, String user, String text, int number) {
+		this.opcode = opcode;
+		this.user = user;
+		this.text = text;
+		this.number = number;
+	}
+
+	public static Frame of(byte opcode) {
+		return new Frame(opcode, null, null, 0);
+	}
+
+	public static Frame user(byte opcode, String user) {
+		return new Frame(opcode, user, null, 0);
+	}
+
+	public static Frame text(String text) {
+		return new Frame(TEXT, null, text, 0);
+	}
+
+	public static Frame line(String text) {
+		return new Frame(LINE, null, text, 0);
+	}
+
+	public static Frame address(String user, String ip, int port) {
+		return new Frame(ADDRESS, user, ip, port);
+	}
+
+	public static Frame consent(String user, boolean accept) {
+		return new Frame(CONSENT, user, null, accept ? 1 : 0);
+	}
+
+	public static Frame heartbeatToken(int port, int id, long token) {
+		return new Frame(HEARTBEAT_TOKEN, null, id + " " + Long.toHexString(token), port);
+	}
+
+	public static Frame redirect(String user, String ip, int port) {
+		return new Frame(REDIRECT, user, ip, port);
+	}
+
+	// opcodes outside the table are rejected when reading
+	public static boolean isValid(int opcode) {
+		return opcode >= 0 && opcode < HAS_USER.length
+				&& (HAS_USER[opcode] || HAS_NUMBER[opcode] || HAS_TEXT[opcode]
+						|| opcode == NEW_START || opcode == PERSISTENT || opcode == UDP_HEARTBEAT || opcode == COMPRESS || opcode == ONLINE
+						|| opcode == LOGOUT || opcode == OFFLINE || opcode == STATS
+						|| opcode == DISCONNECT);
+	}
+}
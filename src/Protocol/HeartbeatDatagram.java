@@ -0,0 +1,50 @@
+/* Author: Hua Tong
+ * Uni: ht2334
+ * */
+package Protocol;
+
+/* Class HeartbeatDatagram
+ * The udp datagram a client sends as its heartbeat instead of opening a
+ * connection. It is 13 bytes:
+ *   'L' | token, 8 bytes | user id, 4 bytes
+ * where the id and the token are the ones the server gave out for this
+ * login, the token so that no one else can keep the user logged in
+ *
+ * */
+public class HeartbeatDatagram {
+	public static final byte MAGIC = 'L';
+	public static final int SIZE = 13;
+
+	public static byte[] encode(int id, long token) {
+		byte[] data = new byte[SIZE];
+		data[0] = MAGIC;
+		for (int i = 0; i < 8; i++) {
+			data[1 + i] = (byte) (token >>> (56 - 8 * i));
+		}
+		for (int i = 0; i < 4; i++) {
+			data[9 + i] = (byte) (id >>> (24 - 8 * i));
+		}
+		return data;
+	}
+
+	// the datagram has the right form
+	public static boolean isValid(byte[] data, int length) {
+		return length == SIZE && data[0] == MAGIC;
+	}
+
+	public static long token(byte[] data) {
+		long token = 0;
+		for (int i = 0; i < 8; i++) {
+			token = (token << 8) | (data[1 + i] & 0xFF);
+		}
+		return token;
+	}
+
+	public static int id(byte[] data) {
+		int id = 0;
+		for (int i = 0; i < 4; i++) {
+			id = (id << 8) | (data[9 + i] & 0xFF);
+		}
+		return id;
+	}
+}
@@ -0,0 +1,139 @@
+/* Author: Hua Tong
+ * Uni: ht2334
+ * */
+package Protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/* Class LegacyCodec
+ * Turns the lines of the writeUTF protocol into Frames and back. The
+ * meaning of a line depends on its prefix ('*', '#', '$', "LIVE", ...),
+ * which is what the binary protocol avoids
+ *
+ * */
+public class LegacyCodec {
+	// the line a client sends first to switch to the binary protocol
+	public static final String HELLO = "Binary Start ";
+	// the server's answer, every frame after it is binary
+	public static final String HELLO_OK = "Binary OK ";
+	// writeUTF takes at most 65535 bytes, which this many chars always fit in
+	private static final int MAX_CHARS = 65535 / 3;
+
+	// read a line sent before the client is logged in
+	public static Frame decodeControl(String lines) {
+		if (lines.startsWith("LIVE")) {
+			return Frame.user(Frame.LIVE, lines.substring(4));
+		}
+		if (lines.equals("New Start")) {
+			return Frame.of(Frame.NEW_START);
+		}
+		if (lines.equals("Persistent Start")) {
+			return Frame.of(Frame.PERSISTENT);
+		}
+		if (lines.equals("Heartbeat UDP")) {
+			return Frame.of(Frame.UDP_HEARTBEAT);
+		}
+		if (lines.startsWith(HELLO) && lines.substring(HELLO.length()).matches("[0-9]+")) {
+			return new Frame(Frame.HELLO, null, null, Integer.parseInt(lines.substring(HELLO.length())));
+		}
+		if (lines.length() > 0 && lines.charAt(0) == '*') {
+			return Frame.user(Frame.RESUME, lines.substring(1));
+		}
+		if (lines.length() > 1 && lines.charAt(0) == '#' && lines.substring(1).matches("[0-9]+")) {
+			return new Frame(Frame.SERVER_PORT, null, null, Integer.parseInt(lines.substring(1)));
+		}
+		return Frame.line(lines);
+	}
+
+	// read a command typed in by a logged in user
+	public static Frame decodeCommand(String lines) {
+		return CommandParser.parse(lines);
+	}
+
+	// write a frame from the server as the line an old client expects
+	public static String encode(Frame frame) {
+		switch (frame.opcode) {
+		case Frame.LOGGED_IN:
+			return "*" + frame.user;
+		case Frame.LOGOUT:
+			return "logout";
+		case Frame.DISCONNECT:
+			return "disconnect";
+		case Frame.ADDRESS:
+			return "#" + frame.user + " " + frame.text + " " + frame.number;
+		case Frame.CONSENT:
+			return (frame.number == 1 ? "$Yes " : "$No ") + frame.user;
+		case Frame.HEARTBEAT_TOKEN:
+			return "%" + frame.number + " " + frame.text;
+		case Frame.REDIRECT:
+			return "@" + frame.user + " " + frame.text + " " + frame.number;
+		default:
+			return frame.text;
+		}
+	}
+
+	// the lines to write for a frame, text longer than writeUTF takes is
+	// split into several lines
+	public static String[] encodeLines(Frame frame) {
+		String lines = encode(frame);
+		if (lines.length() <= MAX_CHARS) {
+			return new String[] { lines };
+		}
+		String[] parts = new String[(lines.length() + MAX_CHARS - 1) / MAX_CHARS];
+		for (int i = 0; i < parts.length; i++) {
+			parts[i] = lines.substring(i * MAX_CHARS, Math.min(lines.length(), (i + 1) * MAX_CHARS));
+		}
+		return parts;
+	}
+
+	// the bytes writeUTF produces for the lines of a frame. They are shared
+	// by everyone the frame is sent to and must not be changed
+	public static byte[] bytes(Frame frame) throws IOException {
+		byte[] bytes = frame.legacyBytes;
+		if (bytes == null) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			DataOutputStream lines = new DataOutputStream(out);
+			for (String msg : encodeLines(frame)) {
+				lines.writeUTF(msg);
+			}
+			bytes = out.toByteArray();
+			frame.legacyBytes = bytes;
+		}
+		return bytes;
+	}
+
+	// read a line the server sent to a client
+	public static Frame decodeServer(String lines) {
+		if (lines.length() > 0 && lines.charAt(0) == '*') {
+			return Frame.user(Frame.LOGGED_IN, lines.substring(1));
+		} else if (lines.equals("logout")) {
+			return Frame.of(Frame.LOGOUT);
+		} else if (lines.equals("disconnect")) {
+			return Frame.of(Frame.DISCONNECT);
+		} else if (lines.length() > 0 && lines.charAt(0) == '#') {
+			String[] info = lines.substring(1).split("\\s");
+			if (info.length == 3 && info[2].matches("[0-9]+")) {
+				return Frame.address(info[0], info[1], Integer.parseInt(info[2]));
+			}
+		} else if (lines.length() > 0 && lines.charAt(0) == '$') {
+			String[] info = lines.substring(1).split("\\s");
+			if (info.length == 2) {
+				return Frame.consent(info[1], info[0].equals("Yes"));
+			}
+		} else if (lines.length() > 0 && lines.charAt(0) == '%') {
+			String[] info = lines.substring(1).split("\\s");
+			if (info.length == 3 && info[0].matches("[0-9]+") && info[1].matches("[0-9]+")
+					&& info[2].matches("[0-9a-f]+")) {
+				return new Frame(Frame.HEARTBEAT_TOKEN, null, info[1] + " " + info[2], Integer.parseInt(info[0]));
+			}
+		} else if (lines.length() > 0 && lines.charAt(0) == '@') {
+			String[] info = lines.substring(1).split("\\s");
+			if (info.length == 3 && info[2].matches("[0-9]+")) {
+				return Frame.redirect(info[0], info[1], Integer.parseInt(info[2]));
+			}
+		}
+		return Frame.text(lines);
+	}
+}
@@ -0,0 +1,60 @@
+/* Author: Hua Tong
+ * Uni: ht2334
+ * */
+package Server;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/* Class HashRing
+ * Consistent hashing of usernames onto the nodes of a cluster. Every node
+ * is put on a ring of 64 bit hashes at many points, by the hash of its
+ * address and the number of the point, and a user belongs to the first
+ * node point at or after the hash of his name. All nodes build the same
+ * ring from the same list, so they agree on where a user lives without
+ * asking each other, and adding a node only moves the users that land on
+ * its points
+ *
+ * */
+public class HashRing {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// node index by the hashes of its points
+	private final TreeMap<Long, Integer> ring = new TreeMap<Long, Integer>();
+
+	public HashRing(List<String> nodes, int points) {
+		for (int node = 0; node < nodes.size(); node++) {
+			for (int point = 0; point < points; point++) {
+				ring.put(hash(nodes.get(node) + "#" + point), node);
+			}
+		}
+	}
+
+	// the index of the node a key belongs to
+	public int node(String key) {
+		Map.Entry<Long, Integer> entry = ring.ceilingEntry(hash(key));
+		if (entry == null) {
+			entry = ring.firstEntry();
+		}
+		return entry.getValue();
+	}
+
+	// the first 8 bytes of the MD5 of the key, the same in every JVM
+	private static long hash(String key) {
+		try {
+			byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(UTF8));
+			long hash = 0;
+			for (int i = 0; i < 8; i++) {
+				hash = (hash << 8) | (digest[i] & 0xFF);
+			}
+			return hash;
+		} catch (NoSuchAlgorithmException e) {
+			// every JVM has MD5
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,53 @@
+/* Author: Hua Tong
+ * Uni: ht2334
+ * */
+package Server;
+
+/* Class LoginAttempts
+ * The failed logins of one name in a row, and when they got the name
+ * blocked. A registered user keeps his in his session; a name that is not
+ * registered only has them while it is tried, the server forgets them once
+ * the name has been left alone for a block time
+ *
+ * */
+public class LoginAttempts {
+	// login attempts in a row, and when the name was blocked for them (0 if not blocked)
+	private int loginTimes = -1;
+	private long blockedSince = 0;
+	// when the name was last tried
+	private long lastAttempt = 0;
+
+	// record a login attempt, returns how many there have been in a row (0, 1 or 2)
+	public synchronized int loginAttempt() {
+		lastAttempt = System.currentTimeMillis();
+		//(login times + 1) % 3, keep login time always < 3
+		loginTimes = (loginTimes + 1) % 3;
+		return loginTimes;
+	}
+
+	public synchronized void loginSucceeded() {
+		loginTimes = -1;
+	}
+
+	public synchronized void blockLogin() {
+		blockedSince = System.currentTimeMillis();
+	}
+
+	// check if the name is blocked for login in, the block ends after blockTime
+	public synchronized boolean isLoginBlocked(long blockTime) {
+		if (blockedSince == 0) {
+			return false;
+		}
+		// if block time has passed, remove the block start time
+		if (System.currentTimeMillis() - blockedSince >= blockTime) {
+			blockedSince = 0;
+			return false;
+		}
+		return true;
+	}
+
+	// not tried and not blocked for blockTime, nothing is lost by forgetting it
+	public synchronized boolean isIdle(long now, long blockTime) {
+		return now - lastAttempt >= blockTime && now - blockedSince >= blockTime;
+	}
+}
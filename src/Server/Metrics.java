@@ -0,0 +1,147 @@
+/* Author: Hua Tong
+ * Uni: ht2334
+ * */
+package Server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import Protocol.BinaryCodec;
+import Protocol.Frame;
+
+/* Class Metrics
+ * Counts what the server does and how long the commands take. Recording is
+ * one or two atomic adds on arrays made when the server starts, so the
+ * threads serving users never allocate or wait on a lock for it. The
+ * numbers are written out in the Prometheus text format, for the stats
+ * command and the http endpoint
+ *
+ * */
+public class Metrics {
+	// the commands that are timed, by opcode
+	private static final byte[] OPCODES = { Frame.MESSAGE, Frame.BROADCAST, Frame.ONLINE, Frame.BLOCK,
+			Frame.UNBLOCK, Frame.GETADDRESS, Frame.PRIVATE, Frame.LOGOUT, Frame.LIVE, Frame.OFFLINE, Frame.STATS,
+			Frame.JOIN, Frame.LEAVE, Frame.ROOM };
+	private static final String[] NAMES = { "message", "broadcast", "online", "block",
+			"unblock", "getaddress", "private", "logout", "live", "offline", "stats", "join", "leave", "room" };
+
+	// the latency of each command, null for opcodes that are not commands
+	private final Histogram[] commands = new Histogram[128];
+	private final String[] commandNames = new String[128];
+	// from the password to the answer of the login
+	public final Histogram login = new Histogram();
+
+	// connections the server opened to clients, taken from the pool, and
+	// those that could not be opened or written to
+	public final AtomicLong reverseDials = new AtomicLong();
+	public final AtomicLong reverseReused = new AtomicLong();
+	public final AtomicLong reverseFailures = new AtomicLong();
+	// users logged out for their heartbeat stopping
+	public final AtomicLong heartbeatExpired = new AtomicLong();
+
+	public Metrics() {
+		for (int i = 0; i < OPCODES.length; i++) {
+			commands[OPCODES[i]] = new Histogram();
+			commandNames[OPCODES[i]] = NAMES[i];
+		}
+	}
+
+	// a command that started at start (System.nanoTime) is done
+	public void command(byte opcode, long start) {
+		Histogram histogram = opcode >= 0 ? commands[opcode] : null;
+		if (histogram != null) {
+			histogram.record(System.nanoTime() - start);
+		}
+	}
+
+	// write the counters and histograms
+	public void render(StringBuilder out) {
+		out.append("# HELP chat_command_seconds How long the commands of logged in users take.\n");
+		out.append("# TYPE chat_command_seconds histogram\n");
+		for (int op = 0; op < commands.length; op++) {
+			if (commands[op] != null) {
+				commands[op].render(out, "chat_command_seconds", "command=\"" + commandNames[op] + "\"");
+			}
+		}
+		out.append("# HELP chat_login_seconds How long a login takes from the password on.\n");
+		out.append("# TYPE chat_login_seconds histogram\n");
+		login.render(out, "chat_login_seconds", null);
+
+		counter(out, "chat_reverse_dials_total", "Connections the server opened to clients.", reverseDials.get());
+		counter(out, "chat_reverse_reused_total", "Connections to clients taken from the pool.", reverseReused.get());
+		counter(out, "chat_reverse_failures_total", "Connections to clients that could not be opened or written to.",
+				reverseFailures.get());
+		counter(out, "chat_heartbeat_expired_total", "Users logged out because their heartbeat stopped.",
+				heartbeatExpired.get());
+		counter(out, "chat_outbox_queued_total", "Frames put in outboxes.", Outbox.queued.get());
+		counter(out, "chat_outbox_dropped_total", "Frames dropped for a full outbox.", Outbox.dropped.get());
+		counter(out, "chat_outbox_spilled_total", "Messages kept offline for a full outbox.", Outbox.spilled.get());
+		counter(out, "chat_outbox_disconnected_total", "Users logged out for a full outbox.",
+				Outbox.disconnected.get());
+		gauge(out, "chat_outbox_max_depth", "The deepest any outbox has been.", Outbox.maxDepth.get());
+		counter(out, "chat_deflate_frames_total", "Frames sent compressed.", BinaryCodec.deflatedFrames.get());
+		counter(out, "chat_deflate_in_bytes_total", "Bytes of the frames sent compressed, before.",
+				BinaryCodec.deflateIn.get());
+		counter(out, "chat_deflate_out_bytes_total", "Bytes of the frames sent compressed, after.",
+				BinaryCodec.deflateOut.get());
+		seconds(out, "chat_deflate_seconds_total", "Time spent compressing frames.", BinaryCodec.deflateNanos.get());
+		seconds(out, "chat_inflate_seconds_total", "Time spent uncompressing frames.", BinaryCodec.inflateNanos.get());
+	}
+
+	public static void counter(StringBuilder out, String name, String help, long value) {
+		metric(out, name, help, "counter", value);
+	}
+
+	// a counter of nanoseconds, written in seconds
+	private static void seconds(StringBuilder out, String name, String help, long nanos) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(" counter\n");
+		out.append(name).append(' ').append(nanos / 1e9).append('\n');
+	}
+
+	public static void gauge(StringBuilder out, String name, String help, long value) {
+		metric(out, name, help, "gauge", value);
+	}
+
+	private static void metric(StringBuilder out, String name, String help, String type, long value) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+		out.append(name).append(' ').append(value).append('\n');
+	}
+
+	/*
+	 * Histogram counts durations in buckets that double from 1 microsecond
+	 * up to about 33 seconds, and one for everything longer
+	 */
+	public static class Histogram {
+		private static final int BUCKETS = 26;
+
+		// the last one is for durations past the largest bucket
+		private final AtomicLongArray counts = new AtomicLongArray(BUCKETS + 1);
+		private final AtomicLong sum = new AtomicLong();
+
+		public void record(long nanos) {
+			long micros = nanos / 1000;
+			// the smallest bucket of 2^i microseconds that takes it
+			int bucket = micros <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(micros - 1);
+			counts.incrementAndGet(Math.min(bucket, BUCKETS));
+			sum.addAndGet(nanos);
+		}
+
+		// the buckets counted up to each bound, the sum in seconds and the count
+		public void render(StringBuilder out, String name, String label) {
+			String labels = label == null ? "" : label + ",";
+			long count = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				count += counts.get(i);
+				out.append(name).append("_bucket{").append(labels).append("le=\"").append((1L << i) / 1e6)
+						.append("\"} ").append(count).append('\n');
+			}
+			count += counts.get(BUCKETS);
+			out.append(name).append("_bucket{").append(labels).append("le=\"+Inf\"} ").append(count).append('\n');
+			String braces = label == null ? "" : "{" + label + "}";
+			out.append(name).append("_sum").append(braces).append(' ').append(sum.get() / 1e9).append('\n');
+			out.append(name).append("_count").append(braces).append(' ').append(count).append('\n');
+		}
+	}
+}
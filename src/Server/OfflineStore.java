@@ -0,0 +1,649 @@
+/* Author: Hua Tong
+ * Uni: ht2334
+ * */
+package Server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* Class OfflineStore
+ * Keeps the offline messages on disk, so they survive a restart and take
+ * no memory while they wait. Every receiver has a directory with
+ * append-only segment files. The last one is written through a memory
+ * mapping while messages come in for the user, and the mapping is let go
+ * once they stop; reading copies a segment from the file instead of
+ * mapping it. A record is
+ *   int length | long time sent | message in UTF-8
+ * where length counts the time and the message, and a length of 0 is
+ * where the records of a segment end. A small cursor file says how far
+ * the messages have been given to the user; a page of them is read first
+ * and the cursor only moves once the page has been delivered. Segments that have been
+ * given out whole are deleted, and so are the oldest ones when a user has
+ * more than maxBytes waiting. Messages older than the retention are
+ * skipped when read, and once an hour the segments of every user on disk
+ * whose messages are all older are deleted, so they do not wait for a
+ * login that may never come. At most maxOpen logs are kept open, past that the
+ * ones used longest ago are let go and read again from disk when needed.
+ * A message is in the page cache once append returns, so it survives the
+ * server dying; the tail is forced to disk by the trim a second later, and
+ * when the log moves on to a new segment or lets go of the tail, so a
+ * crash of the machine loses at most the last second
+ *
+ * */
+public class OfflineStore {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	// the logs on disk are looked at for old messages once every 3600 trims
+	private static final int EXPIRE_TRIMS = 3600;
+	// how a mapping is let go at once, null where the runtime does not have
+	// it and the garbage collector lets it go
+	private static final Object UNSAFE;
+	private static final Method INVOKE_CLEANER;
+
+	static {
+		Object unsafe = null;
+		Method invokeCleaner = null;
+		try {
+			Class<?> type = Class.forName("sun.misc.Unsafe");
+			invokeCleaner = type.getMethod("invokeCleaner", ByteBuffer.class);
+			Field field = type.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			unsafe = field.get(null);
+		} catch (Exception e) {
+			invokeCleaner = null;
+		}
+		UNSAFE = unsafe;
+		INVOKE_CLEANER = invokeCleaner;
+	}
+
+	private final File root;
+	private final int segmentSize;
+	private final long maxBytes;
+	private final long retention;
+	private final int maxOpen;
+	// counts the uses of the logs, the one with the smallest count was used longest ago
+	private final AtomicLong clock = new AtomicLong();
+	// trims so far, trim is only called from one thread
+	private int trims = 0;
+	// the logs of users who have messages waiting or have just had them, by username
+	private final ConcurrentHashMap<String, Log> logs = new ConcurrentHashMap<String, Log>();
+
+	public OfflineStore(File root, int segmentSize, long maxBytes, long retention, int maxOpen)
+			throws IOException {
+		if (!root.isDirectory() && !root.mkdirs()) {
+			throw new IOException("Can't create the offline message directory " + root);
+		}
+		this.root = root;
+		this.segmentSize = segmentSize;
+		this.maxBytes = maxBytes;
+		this.retention = retention;
+		this.maxOpen = maxOpen;
+	}
+
+	// add a message to the end of a user's log
+	public void append(String user, String msg) throws IOException {
+		while (true) {
+			Log log = log(user);
+			synchronized (log) {
+				// a log that has just been emptied is out of the table, use a new one
+				if (!log.closed) {
+					log.append(msg.getBytes(UTF8));
+					return;
+				}
+			}
+		}
+	}
+
+	// read up to max of the messages the user has not been given, oldest
+	// first. They are still waiting until the page is given
+	public Page read(String user, int max) throws IOException {
+		while (true) {
+			Log log = log(user);
+			synchronized (log) {
+				if (!log.closed) {
+					return log.read(max);
+				}
+			}
+		}
+	}
+
+	// the messages of a page have been delivered, move the cursor past them
+	public void given(String user, Page page) throws IOException {
+		while (true) {
+			Log log = log(user);
+			synchronized (log) {
+				if (!log.closed) {
+					log.given(page.segment, page.position);
+					return;
+				}
+			}
+		}
+	}
+
+	// true if the user has messages he has not been given
+	public boolean hasMessages(String user) throws IOException {
+		while (true) {
+			Log log = log(user);
+			synchronized (log) {
+				if (!log.closed) {
+					// a user without messages keeps no log open
+					if (log.isEmpty()) {
+						log.close();
+						return false;
+					}
+					return true;
+				}
+			}
+		}
+	}
+
+	// force to disk what came since the last trim, and let go of the
+	// mappings of logs that had no message since then. Called once a second,
+	// and every EXPIRE_TRIMS it deletes the messages past the retention
+	public void trim() {
+		for (Log log : logs.values()) {
+			synchronized (log) {
+				if (log.appended) {
+					log.force();
+				} else {
+					log.unmapTail();
+				}
+			}
+		}
+		if (trims++ % EXPIRE_TRIMS == 0) {
+			expire();
+		}
+	}
+
+	// delete the segments of every user, open or not, whose messages are all
+	// past the retention
+	private void expire() {
+		long oldest = System.currentTimeMillis() - retention;
+		String[] names = root.list();
+		if (names == null) {
+			return;
+		}
+		for (String name : names) {
+			String user = userName(name);
+			if (user == null || !new File(root, name).isDirectory()) {
+				continue;
+			}
+			try {
+				while (true) {
+					Log log = logs.get(user);
+					// a log opened only for this is let go after, so a sweep
+					// does not push the logs in use out of the table
+					boolean opened = false;
+					if (log == null) {
+						log = new Log(user);
+						Log old = logs.putIfAbsent(user, log);
+						opened = old == null;
+						if (old != null) {
+							log = old;
+						}
+					}
+					synchronized (log) {
+						if (!log.closed) {
+							log.expire(oldest);
+							if (opened && !log.closed) {
+								log.forget();
+							}
+							break;
+						}
+					}
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	// how many users have a log open, they have messages waiting or just had them
+	public int users() {
+		return logs.size();
+	}
+
+	// the bytes of the segments of all open logs
+	public long bytes() {
+		long bytes = 0;
+		for (Log log : logs.values()) {
+			synchronized (log) {
+				bytes += log.size;
+			}
+		}
+		return bytes;
+	}
+
+	private Log log(String user) throws IOException {
+		Log log = logs.get(user);
+		if (log == null) {
+			log = new Log(user);
+			// two threads read the same directory, keep the first one
+			Log old = logs.putIfAbsent(user, log);
+			if (old != null) {
+				log = old;
+			} else if (logs.size() > maxOpen) {
+				forgetOldest();
+			}
+		}
+		log.used = clock.incrementAndGet();
+		return log;
+	}
+
+	// too many logs are open, let go of the quarter used longest ago. They
+	// keep their files, a later use reads them again
+	private synchronized void forgetOldest() {
+		List<Log> open = new ArrayList<Log>(logs.values());
+		if (open.size() <= maxOpen) {
+			return;
+		}
+		Collections.sort(open, new Comparator<Log>() {
+			@Override
+			public int compare(Log a, Log b) {
+				return a.used < b.used ? -1 : a.used > b.used ? 1 : 0;
+			}
+		});
+		int forget = open.size() - maxOpen * 3 / 4;
+		for (int i = 0; i < forget; i++) {
+			Log log = open.get(i);
+			synchronized (log) {
+				if (!log.closed) {
+					log.forget();
+				}
+			}
+		}
+	}
+
+	// let go of a mapping now, not when it is garbage collected. Nothing may
+	// use the mapping after this
+	private static void unmap(MappedByteBuffer buffer) {
+		if (INVOKE_CLEANER == null) {
+			return;
+		}
+		try {
+			INVOKE_CLEANER.invoke(UNSAFE, buffer);
+		} catch (Exception e) {
+			// left to the garbage collector
+		}
+	}
+
+	// the username as a directory name, names that could be a path are written in hex
+	private static String fileName(String user) {
+		if (user.matches("[A-Za-z0-9_][A-Za-z0-9_.-]*")) {
+			return user;
+		}
+		StringBuilder hex = new StringBuilder("%");
+		for (byte b : user.getBytes(UTF8)) {
+			hex.append(String.format("%02x", b));
+		}
+		return hex.toString();
+	}
+
+	// the username of a directory, null if it is not one fileName makes
+	private static String userName(String file) {
+		if (file.matches("[A-Za-z0-9_][A-Za-z0-9_.-]*")) {
+			return file;
+		}
+		if (!file.matches("%([0-9a-f]{2})+")) {
+			return null;
+		}
+		byte[] bytes = new byte[(file.length() - 1) / 2];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) Integer.parseInt(file.substring(1 + 2 * i, 3 + 2 * i), 16);
+		}
+		return new String(bytes, UTF8);
+	}
+
+	private static String segmentName(int segment) {
+		return String.format("%010d.log", segment);
+	}
+
+	/*
+	 * Page is some messages read for a user and where in his log they end
+	 */
+	public static class Page {
+		public final List<String> messages;
+		// true if more messages come after the page
+		public final boolean more;
+		private final int segment;
+		private final int position;
+
+		private Page(List<String> messages, boolean more, int segment, int position) {
+			this.messages = messages;
+			this.more = more;
+			this.segment = segment;
+			this.position = position;
+		}
+	}
+
+	/*
+	 * Log is the segments of one user and where reading and writing are in
+	 * them. All of its methods are called holding its lock
+	 */
+	private class Log {
+		private String user;
+		private File dir;
+		// the oldest segment still on disk and the one being written
+		private int firstSegment;
+		private int writeSegment;
+		private int writePosition;
+		// how far the user has been given the messages
+		private int readSegment;
+		private int readPosition;
+		// the bytes of all segments on disk
+		private long size;
+		// there is a segment on disk, kept so that an append does not list
+		// the directory. The last segment is never dropped while the log is open
+		private boolean hasSegments;
+		// the mapping of the segment being written, only while messages come in
+		private MappedByteBuffer tail;
+		// a message came in since the tail was last forced to disk
+		private boolean appended = false;
+		// when the log was last used, by the clock of the store
+		private volatile long used;
+		// set once the log has been emptied or let go and taken out of the table
+		private boolean closed = false;
+
+		// find the segments and the cursor a user's directory has from before
+		public Log(String user) throws IOException {
+			this.user = user;
+			dir = new File(root, fileName(user));
+			int[] segments = segments();
+			hasSegments = segments.length > 0;
+			if (hasSegments) {
+				firstSegment = segments[0];
+				writeSegment = segments[segments.length - 1];
+				for (int segment : segments) {
+					size += new File(dir, segmentName(segment)).length();
+				}
+				writePosition = end(read(writeSegment, 0));
+			}
+			readSegment = firstSegment;
+			readPosition = 0;
+
+			File cursor = new File(dir, "cursor");
+			if (cursor.exists()) {
+				RandomAccessFile file = new RandomAccessFile(cursor, "r");
+				try {
+					int segment = file.readInt();
+					int position = file.readInt();
+					if (segment >= firstSegment && segment <= writeSegment) {
+						readSegment = segment;
+						readPosition = position;
+					}
+				} catch (IOException e) {
+					// a cursor cut short, give out everything again
+				} finally {
+					file.close();
+				}
+			}
+		}
+
+		public boolean isEmpty() {
+			return readSegment == writeSegment && readPosition >= writePosition;
+		}
+
+		public void append(byte[] msg) throws IOException {
+			int record = 12 + msg.length;
+			if (tail == null && hasSegments) {
+				tail = map(writeSegment);
+			}
+			// start a new segment when the record does not fit, one record
+			// larger than a segment gets a segment of its own size
+			if (tail == null || writePosition + record > tail.capacity()) {
+				if (hasSegments) {
+					writeSegment++;
+				} else if (!dir.isDirectory() && !dir.mkdirs()) {
+					throw new IOException("Can't create " + dir);
+				}
+				writePosition = 0;
+				unmapTail();
+				tail = create(writeSegment, Math.max(segmentSize, record));
+				hasSegments = true;
+				size += tail.capacity();
+			}
+
+			ByteBuffer data = tail.duplicate();
+			data.position(writePosition + 4);
+			data.putLong(System.currentTimeMillis());
+			data.put(msg);
+			// the length goes in last, a record is not there until it is whole
+			tail.putInt(writePosition, 8 + msg.length);
+			writePosition += record;
+			appended = true;
+
+			// too much is waiting, drop the oldest segments
+			while (size > maxBytes && firstSegment < writeSegment) {
+				dropFirst();
+			}
+		}
+
+		// read from the cursor on, the cursor stays where it is
+		public Page read(int max) throws IOException {
+			List<String> list = new ArrayList<String>();
+			long oldest = System.currentTimeMillis() - retention;
+			int segmentAt = readSegment;
+			int positionAt = readPosition;
+			while (list.size() < max && !(segmentAt == writeSegment && positionAt >= writePosition)) {
+				// the segment from where reading is, so a position in it is
+				// positionAt - from
+				int from = positionAt;
+				ByteBuffer segment = read(segmentAt, from);
+				while (list.size() < max && positionAt - from + 12 <= segment.limit()) {
+					int length = segment.getInt(positionAt - from);
+					if (length == 0) {
+						break;
+					}
+					long time = segment.getLong(positionAt - from + 4);
+					if (time >= oldest) {
+						byte[] msg = new byte[length - 8];
+						segment.position(positionAt - from + 12);
+						segment.get(msg);
+						list.add(new String(msg, UTF8));
+					}
+					positionAt += 4 + length;
+				}
+				// go on with the next segment once this one is read to its end
+				if (list.size() < max && segmentAt < writeSegment) {
+					segmentAt++;
+					positionAt = 0;
+				} else {
+					break;
+				}
+			}
+			boolean more = !(segmentAt == writeSegment && positionAt >= writePosition);
+			return new Page(list, more, segmentAt, positionAt);
+		}
+
+		// move the cursor to where a page ends. Only forward: a page read
+		// twice is given once, and dropped segments may have moved it on
+		public void given(int segment, int position) throws IOException {
+			if (segment > readSegment || segment == readSegment && position > readPosition) {
+				readSegment = segment;
+				readPosition = position;
+			}
+			compact();
+		}
+
+		// delete what has been given out, all of it when nothing is left
+		private void compact() throws IOException {
+			while (firstSegment < readSegment) {
+				dropFirst();
+			}
+			if (isEmpty()) {
+				close();
+				return;
+			}
+			RandomAccessFile cursor = new RandomAccessFile(new File(dir, "cursor"), "rw");
+			try {
+				cursor.writeInt(readSegment);
+				cursor.writeInt(readPosition);
+			} finally {
+				cursor.close();
+			}
+		}
+
+		// everything has been given out, delete the files and take the log
+		// out of the table
+		public void close() {
+			// nothing to force, the files go
+			appended = false;
+			for (int segment : segments()) {
+				new File(dir, segmentName(segment)).delete();
+			}
+			new File(dir, "cursor").delete();
+			dir.delete();
+			unmapTail();
+			closed = true;
+			logs.remove(user, this);
+		}
+
+		// take the log out of the table and keep its files, the cursor is on
+		// disk already
+		public void forget() {
+			unmapTail();
+			closed = true;
+			logs.remove(user, this);
+		}
+
+		public void unmapTail() {
+			if (tail != null) {
+				force();
+				unmap(tail);
+				tail = null;
+			}
+		}
+
+		// write the messages that came in to the disk
+		public void force() {
+			if (tail != null && appended) {
+				tail.force();
+			}
+			appended = false;
+		}
+
+		private void dropFirst() {
+			File file = new File(dir, segmentName(firstSegment));
+			size -= file.length();
+			file.delete();
+			if (readSegment == firstSegment) {
+				readSegment++;
+				readPosition = 0;
+			}
+			firstSegment++;
+		}
+
+		// the numbers of the segments on disk, in order
+		private int[] segments() {
+			String[] names = dir.list();
+			if (names == null) {
+				return new int[0];
+			}
+			int[] segments = new int[names.length];
+			int n = 0;
+			for (String name : names) {
+				if (name.matches("[0-9]{10}\\.log")) {
+					segments[n++] = Integer.parseInt(name.substring(0, 10));
+				}
+			}
+			segments = Arrays.copyOf(segments, n);
+			Arrays.sort(segments);
+			return segments;
+		}
+
+		private MappedByteBuffer create(int segment, int capacity) throws IOException {
+			RandomAccessFile file = new RandomAccessFile(new File(dir, segmentName(segment)), "rw");
+			try {
+				file.setLength(capacity);
+				return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+			} finally {
+				// the mapping stays valid after the file is closed
+				file.close();
+			}
+		}
+
+		private MappedByteBuffer map(int segment) throws IOException {
+			RandomAccessFile file = new RandomAccessFile(new File(dir, segmentName(segment)), "rw");
+			try {
+				return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+			} finally {
+				file.close();
+			}
+		}
+
+		// a copy of a segment from a position to its end
+		private ByteBuffer read(int segment, int from) throws IOException {
+			RandomAccessFile file = new RandomAccessFile(new File(dir, segmentName(segment)), "r");
+			try {
+				FileChannel channel = file.getChannel();
+				ByteBuffer buffer = ByteBuffer.allocate((int) Math.max(file.length() - from, 0));
+				while (buffer.hasRemaining()) {
+					if (channel.read(buffer, from + buffer.position()) < 0) {
+						break;
+					}
+				}
+				buffer.flip();
+				return buffer;
+			} finally {
+				file.close();
+			}
+		}
+
+		// drop the segments whose messages are all sent before oldest, the
+		// whole log if that is all of them
+		public void expire(long oldest) throws IOException {
+			while (!closed) {
+				if (!hasSegments) {
+					close();
+					return;
+				}
+				File file = new File(dir, segmentName(firstSegment));
+				// written to since, no need to read it
+				if (file.lastModified() >= oldest) {
+					return;
+				}
+				ByteBuffer segment = read(firstSegment, 0);
+				// the time of its last message
+				int end = end(segment);
+				int last = -1;
+				for (int position = 0; position < end; position += 4 + segment.getInt(position)) {
+					last = position;
+				}
+				if (last >= 0 && segment.getLong(last + 4) >= oldest) {
+					return;
+				}
+				if (firstSegment < writeSegment) {
+					dropFirst();
+				} else {
+					close();
+				}
+			}
+		}
+
+		// where the records of a segment end
+		private int end(ByteBuffer segment) {
+			int position = 0;
+			while (position + 12 <= segment.limit()) {
+				int length = segment.getInt(position);
+				if (length == 0) {
+					break;
+				}
+				position += 4 + length;
+			}
+			return position;
+		}
+	}
+}
@@ -0,0 +1,88 @@
+/* Author: Hua Tong
+ * Uni: ht2334
+ * */
+package Server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import Protocol.Frame;
+
+/* Class Outbox
+ * The frames other users sent to one user that have not been written yet.
+ * Senders only add to it; one writer at a time takes the frames out in
+ * order and writes them, so a slow or unreachable user holds up no one but
+ * himself. It is bounded, what happens to a frame that does not fit is up
+ * to the overflow policy of the server
+ *
+ * */
+public class Outbox {
+	// what to do with a frame when the outbox is full
+	public static final int DROP = 0;
+	// text goes to the offline messages of the user
+	public static final int SPILL = 1;
+	// the user is logged out and his connection closed
+	public static final int DISCONNECT = 2;
+
+	// counted over all outboxes
+	public static final AtomicLong queued = new AtomicLong();
+	public static final AtomicLong dropped = new AtomicLong();
+	public static final AtomicLong spilled = new AtomicLong();
+	public static final AtomicLong disconnected = new AtomicLong();
+	// the deepest any outbox has been
+	public static final AtomicInteger maxDepth = new AtomicInteger();
+
+	private final Queue<Frame> frames = new ConcurrentLinkedQueue<Frame>();
+	private final AtomicInteger depth = new AtomicInteger();
+	// set while a writer is taking frames out
+	private final AtomicBoolean draining = new AtomicBoolean();
+
+	// add a frame, false if there are already capacity frames waiting
+	public boolean offer(Frame frame, int capacity) {
+		int now = depth.incrementAndGet();
+		if (now > capacity) {
+			depth.decrementAndGet();
+			return false;
+		}
+		frames.add(frame);
+		queued.incrementAndGet();
+		int max = maxDepth.get();
+		while (now > max && !maxDepth.compareAndSet(max, now)) {
+			max = maxDepth.get();
+		}
+		return true;
+	}
+
+	// the next frame to write, null if there is none
+	public Frame poll() {
+		Frame frame = frames.poll();
+		if (frame != null) {
+			depth.decrementAndGet();
+		}
+		return frame;
+	}
+
+	public int depth() {
+		return depth.get();
+	}
+
+	public void clear() {
+		while (poll() != null) {
+		}
+	}
+
+	// true if the caller is to start a writer, there is only one at a time
+	public boolean startWriter() {
+		return draining.compareAndSet(false, true);
+	}
+
+	// the writer found the outbox empty and stops. Returns true if a frame
+	// came in meanwhile and the writer has to go on
+	public boolean stopWriter() {
+		draining.set(false);
+		return !frames.isEmpty() && draining.compareAndSet(false, true);
+	}
+}
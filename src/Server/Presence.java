@@ -0,0 +1,70 @@
+/* Author: Hua Tong
+ * Uni: ht2334
+ * */
+package Server;
+
+import java.util.BitSet;
+
+import Protocol.Frame;
+
+/* Class Presence
+ * Who was logged in at one version of the presence, the answer to the
+ * online command. It is made once after logins and logouts change the
+ * version and then shared by every user asking, instead of every online
+ * walking the logged in users. The names are cut into pages, and each
+ * page is made into one frame the first time it is asked for; the frame
+ * keeps its encoded bytes, so it is encoded once however many users get
+ * it. Two threads that race on a page only make it twice
+ *
+ * */
+public class Presence {
+	public final int version;
+	private final String[] names;
+	private final int pageSize;
+	private final Frame[] pages;
+	private final Frame count;
+
+	public Presence(int version, BitSet online, UserTable users, int pageSize) {
+		this.version = version;
+		this.pageSize = pageSize;
+		names = new String[online.cardinality()];
+		int i = 0;
+		for (int id = online.nextSetBit(0); id >= 0; id = online.nextSetBit(id + 1)) {
+			names[i++] = users.name(id);
+		}
+		pages = new Frame[Math.max((names.length + pageSize - 1) / pageSize, 1)];
+		count = Frame.text(names.length + (names.length == 1 ? " user is" : " users are") + " online.");
+	}
+
+	public int pages() {
+		return pages.length;
+	}
+
+	// the frame with the users of one page, counted from 1
+	public Frame page(int page) {
+		if (page < 1 || page > pages.length) {
+			return Frame.text("There is no page " + page + ", there "
+					+ (pages.length == 1 ? "is 1 page." : "are " + pages.length + " pages."));
+		}
+		Frame frame = pages[page - 1];
+		if (frame == null) {
+			StringBuilder text = new StringBuilder();
+			int end = Math.min(page * pageSize, names.length);
+			for (int i = (page - 1) * pageSize; i < end; i++) {
+				text.append(names[i]).append("\r\n");
+			}
+			if (pages.length > 1) {
+				text.append("Page ").append(page).append(" of ").append(pages.length)
+						.append(" (").append(names.length).append(" users), use: online <page>");
+			}
+			frame = Frame.text(text.toString());
+			pages[page - 1] = frame;
+		}
+		return frame;
+	}
+
+	// the frame that only tells how many users are online
+	public Frame count() {
+		return count;
+	}
+}
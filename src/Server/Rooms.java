@@ -0,0 +1,59 @@
+/* Author: Hua Tong
+ * Uni: ht2334
+ * */
+package Server;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/* Class Rooms
+ * The chat rooms and who is in them, as a bitmap of user ids per room. A
+ * message to a room only goes over the bits of its members, so it costs
+ * as much as the room is big however many users are logged in. Members
+ * stay in a room when they log out and get its messages offline; a room
+ * is gone once its last member leaves. Every method holds the lock of
+ * the rooms for one lookup and a bit flip or a copy
+ *
+ * */
+public class Rooms {
+	private final Map<String, BitSet> rooms = new HashMap<String, BitSet>();
+
+	// false if the user was in the room already
+	public synchronized boolean join(String room, int id) {
+		BitSet members = rooms.get(room);
+		if (members == null) {
+			members = new BitSet();
+			rooms.put(room, members);
+		}
+		if (members.get(id)) {
+			return false;
+		}
+		members.set(id);
+		return true;
+	}
+
+	// false if the user was not in the room
+	public synchronized boolean leave(String room, int id) {
+		BitSet members = rooms.get(room);
+		if (members == null || !members.get(id)) {
+			return false;
+		}
+		members.clear(id);
+		if (members.isEmpty()) {
+			rooms.remove(room);
+		}
+		return true;
+	}
+
+	public synchronized boolean contains(String room, int id) {
+		BitSet members = rooms.get(room);
+		return members != null && members.get(id);
+	}
+
+	// a copy of the members of a room, empty if there is no such room
+	public synchronized BitSet members(String room) {
+		BitSet members = rooms.get(room);
+		return members == null ? new BitSet() : (BitSet) members.clone();
+	}
+}
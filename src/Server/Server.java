@@ -3,7 +3,9 @@
  * */
 package Server;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
@@ -11,88 +13,319 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.lang.reflect.Method;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import Protocol.BinaryCodec;
+import Protocol.Frame;
+import Protocol.HeartbeatDatagram;
+import Protocol.LegacyCodec;
 
 /* Class Server
- * Defines all actions the Server end will perform 
- * 
+ * Defines all actions the Server end will perform
+ *
  * */
 public class Server {
 	// block time for login
 	private final int BLOCK_TIME = 60000;
 	// timeout for socket to close
 	private final int CONNECT_TIMEOUT = 30000;
-	// every one minute check heartbeat
-	private final int CHECK_HEARTBEAT_TIME = 60000;
+	// a connection being closed has 5 seconds to write out what it was sent
+	private final int CLOSE_TIME = 5000;
+	// the heartbeats are checked once a second
+	private final int CHECK_HEARTBEAT_TIME = 1000;
 	// logout if heartbeat hasn't send for 60 seconds
 	private final int LOGOUT_TIME = 60000;
-	private final String CREDENTIAL_PATH = "credentials.txt";
+	// how often an event loop wakes up to look for idle connections
+	private final int IDLE_CHECK_TIME = 1000;
+	// the largest frame writeUTF can produce: 2 bytes of length and 65535 bytes of data
+	private final int MAX_FRAME = 65537;
+	// how many queued frames an event loop writes to a channel at once
+	private final int GATHER_FRAMES = 16;
+	// what a socket keeps of the frames sent to it before writing them out
+	private final int SOCKET_BUFFER = 8192;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	// offline messages are written in segments of 1MB, at most 64MB are kept
+	// for one user and for 30 days
+	private final int OFFLINE_SEGMENT = 1 << 20;
+	private final long OFFLINE_MAX = 64L << 20;
+	private final long OFFLINE_RETENTION = 30L * 24 * 60 * 60 * 1000;
+	// at most 1024 users have their offline messages open at once, and the
+	// segment being written is mapped until no message came for a second
+	private final int OFFLINE_OPEN = 1024;
+	private final int OFFLINE_TRIM_TIME = 1000;
+	// offline messages go out 20 to a frame, at most 100 at a time. The
+	// first 100 are sent after login, the user asks for the others
+	private final int OFFLINE_BATCH = 20;
+	private final int OFFLINE_PAGE = 100;
+	// users named in one answer to online
+	private final int ONLINE_PAGE = 200;
+	// a connection the server opened to a client is kept 10 seconds after
+	// its last use, and at most 8 are kept to one host
+	private final int REVERSE_IDLE_TIME = 10000;
+	private final int REVERSE_PER_HOST = 8;
+	// how long to wait for a client's server socket to accept a connection
+	private final int DIAL_TIMEOUT = 5000;
+	// a private chat request not answered in a minute is dropped
+	private final int CONSENT_TIMEOUT = 60000;
+	// every node of a cluster is at 128 points of the hash ring, and a
+	// link to a node that can't be reached is tried again every second
+	private final int RING_POINTS = 128;
+	private final int PEER_RETRY_TIME = 1000;
+	// the line the server writes first when it connects to a client using the binary protocol
+	private final String BINARY_HELLO = LegacyCodec.HELLO + BinaryCodec.VERSION;
 
 	private ServerSocket serverSocket;
-	
-	// the hash table of connected threads, username as key, threads as value
-	private Map<String, Socket> connectedUsers;
+	// used instead of serverSocket when running in nio mode
+	private ServerSocketChannel serverChannel;
+	// receives heartbeats sent as datagrams, null unless started with -udp
+	private DatagramSocket heartbeatSocket;
+	private Options options;
+	// creates the threads for connections and background work, virtual ones in virtual mode
+	private ThreadFactory threads;
+	// run the writers that empty the outboxes of users
+	private ExecutorService writers;
+	// the connections to clients that are logged in but not connected
+	private ReversePool reverse;
+	// runs the tasks that wait, the pool's eviction and the timeouts of private chat requests
+	private ScheduledExecutorService timers;
+	// what the server has done, for the stats command and the http endpoint
+	private Metrics metrics;
+	// the other servers the users are shared with, null unless started with -cluster
+	private Cluster cluster;
+	// the threads that own the users, by user id modulo their number. null
+	// unless started with -shards, then the threads serving connections
+	// change users only through them
+	private Shard[] shards;
+	// the shard of the thread, null on threads that are not a shard
+	private final ThreadLocal<Shard> currentShard = new ThreadLocal<Shard>();
+
+	// the "username password" line of each registered user, by user id
 	private List<String> userCredentials;
-	// the list of username of all registered users
-	private List<String> allUsers;
-	// the hash table to record logged in users, use username as key, ip address as value
-	private Map<String, String> loggedInUsersWithIP;
-	// the hash table to record logged in users, use username as key, port number as value
-	private Map<String, Integer> loggedInUsersWithPort;
-	// the hash table ofblocked users because of false login, username as key, block start time as value
-	private Map<String, Long> blockedUsers;
-	// for offline messages, key: receiver's username, value: a list of messages
-	private Map<String, List<String>> offlineMsg;
-	// keep the lists of blocked users, username as key, the list of name of users who blocked this user as value
-	private Map<String, List<String>> blockedBy;
-	// store the login times for each username
-	private Map<String, Integer> userLoginTimes; 
-	// store the last time a user send a heartbeat
-	private Map<String, Long> heartbeat;
-	
-	
+	// the ids of all registered users
+	private UserTable users;
+	// the session of every registered user, by user id
+	private Session[] sessions;
+	// counts the login attempts of names that are not registered, so they
+	// get blocked like the others. A name is forgotten once it has been left
+	// alone for BLOCK_TIME
+	private Map<String, LoginAttempts> strangers;
+	// the ids of logged in users
+	private UserSet loggedInUsers;
+	// changed after every login and logout, here or on another node, and
+	// the answer to online made at some version
+	private AtomicInteger presenceVersion = new AtomicInteger();
+	private volatile Presence presence;
+	// the members of the chat rooms
+	private Rooms rooms;
+	// logs out the users whose heartbeat stopped
+	private CheckHeartbeat liveness;
+	// the messages sent to users while they were not logged in
+	private OfflineStore offline;
+
+
 	// constructor
 	public Server(int port) throws IOException {
+		this(port, new Options());
+	}
+
+	public Server(int port, Options options) throws IOException {
+		this(options);
 
 		// create a new serverSocket using the parsed port
-		serverSocket = new ServerSocket(port);
+		try {
+			if (options.nio) {
+				serverChannel = ServerSocketChannel.open();
+				serverChannel.socket().bind(new InetSocketAddress(port));
+			} else {
+				serverSocket = new ServerSocket(port);
+			}
+		} catch (IOException e) {
+			shutdown();
+			throw e;
+		}
 		System.out.println("Simple Chat Server");
 
+		// heartbeats can also come as datagrams, on the same port unless told otherwise
+		if (options.udp) {
+			heartbeatSocket = new DatagramSocket(options.udpPort == 0 ? port : options.udpPort);
+			threads.newThread(new HeartbeatListener()).start();
+		}
+
+		// the metrics can be read over http, from this machine only
+		if (options.statsPort != 0) {
+			startStats(options.statsPort);
+		}
+
+		// link to the other nodes once this one can be linked to
+		if (cluster != null) {
+			cluster.start();
+		}
+
+		// start accepting client sockets
+		if (options.nio) {
+			acceptChannels();
+		} else {
+			acceptSocket();
+		}
+
+	}
+
+	// a server that does not listen, its users are served over whatever
+	// Connection a CommandHandler is given. The benchmarks use it
+	public Server(Options options) throws IOException {
+		this.options = options;
+
+		if (options.virtual) {
+			threads = virtualThreadFactory();
+		} else {
+			threads = Executors.defaultThreadFactory();
+		}
+		writers = Executors.newCachedThreadPool(threads);
+		timers = Executors.newSingleThreadScheduledExecutor(threads);
+		metrics = new Metrics();
+		reverse = new ReversePool();
+
 		// initialize
 		userCredentials = new ArrayList<String>();
-		allUsers = new ArrayList<String>();
-		loggedInUsersWithIP = new HashMap<String, String>();
-		loggedInUsersWithPort = new HashMap<String, Integer>();
-		connectedUsers = new HashMap<String, Socket>();
-		blockedUsers = new HashMap<String, Long>();
-		blockedBy = new HashMap<String, List<String>>();
-		userLoginTimes = new HashMap<String, Integer>();
-		heartbeat = new HashMap<String, Long>();
-		offlineMsg = new HashMap<String, List<String>>();
+		users = new UserTable();
+		strangers = new ConcurrentHashMap<String, LoginAttempts>();
+		loggedInUsers = new UserSet();
+		rooms = new Rooms();
+		offline = new OfflineStore(new File(options.offlineDir), OFFLINE_SEGMENT, OFFLINE_MAX, OFFLINE_RETENTION,
+				OFFLINE_OPEN);
+		timers.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				offline.trim();
+			}
+		}, OFFLINE_TRIM_TIME, OFFLINE_TRIM_TIME, TimeUnit.MILLISECONDS);
+		timers.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				forgetStrangers();
+			}
+		}, BLOCK_TIME, BLOCK_TIME, TimeUnit.MILLISECONDS);
 
 		// load user credential list from text file
-		loadCredentials(CREDENTIAL_PATH);
-		
+		loadCredentials(options.credentialPath);
+		sessions = new Session[users.size()];
+		for (int id = 0; id < sessions.length; id++) {
+			sessions[id] = new Session(id, users.name(id));
+		}
+
+		if (options.clusterNodes != null) {
+			cluster = new Cluster(options.clusterNodes, options.clusterNode);
+		}
+		if (options.shards > 0) {
+			shards = new Shard[options.shards];
+			for (int i = 0; i < shards.length; i++) {
+				shards[i] = new Shard(i);
+			}
+		}
+
 		// check heartbeat thread
-		new CheckHeartbeat();
-		
-		// start accepting client sockets
-		acceptSocket();
-		
-		
+		liveness = new CheckHeartbeat();
+	}
+
+	// stop the threads the server started for background work
+	public void shutdown() {
+		liveness.stop();
+		if (shards != null) {
+			for (Shard shard : shards) {
+				shard.stop();
+			}
+		}
+		timers.shutdownNow();
+		writers.shutdown();
+	}
+
+	// serve the metrics at http://localhost:port/metrics
+	private void startStats(int port) throws IOException {
+		HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		http.createContext("/metrics", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				byte[] body = stats().getBytes("UTF-8");
+				exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+				exchange.sendResponseHeaders(200, body.length);
+				exchange.getResponseBody().write(body);
+				exchange.close();
+			}
+		});
+		http.start();
+	}
+
+	// the metrics and the state of the users now, in the Prometheus text format
+	private String stats() {
+		int loggedIn = 0;
+		int connected = 0;
+		long waiting = 0;
+		for (Session session : sessions) {
+			if (session.isLoggedIn()) {
+				loggedIn++;
+				if (session.getConnection() != null) {
+					connected++;
+				}
+			}
+			waiting += session.getOutbox().depth();
+		}
+		StringBuilder out = new StringBuilder();
+		metrics.render(out);
+		Metrics.gauge(out, "chat_sessions_logged_in", "Users logged in.", loggedIn);
+		Metrics.gauge(out, "chat_sessions_connected", "Logged in users with a connection open.", connected);
+		Metrics.gauge(out, "chat_sessions_disconnected", "Logged in users the server has to call.",
+				loggedIn - connected);
+		Metrics.gauge(out, "chat_outbox_frames", "Frames waiting in outboxes.", waiting);
+		Metrics.gauge(out, "chat_offline_users", "Users with offline messages open.", offline.users());
+		Metrics.gauge(out, "chat_offline_bytes", "Bytes of offline message segments of those users.",
+				offline.bytes());
+		return out.toString();
 	}
 
 	// read from file that stores credential information
-	// return a list of strings, each with "username password" format
+	// give each username an id, and keep its "username password" line
 	public void loadCredentials(String filePath) {
 
 		String next = null;
@@ -103,8 +336,10 @@ public class Server {
 			BufferedReader br = new BufferedReader(reader);
 			while ((next = br.readLine()) != null) {
 				String[] identity = next.split("\\s+");
-				userCredentials.add(next);
-				allUsers.add(identity[0]);
+				// a name that is there twice keeps its first password
+				if (users.add(identity[0]) == userCredentials.size()) {
+					userCredentials.add(next);
+				}
 			}
 
 			br.close();
@@ -118,6 +353,40 @@ public class Server {
 
 	}
 
+	// the session of a registered user, null if there is no such user
+	private Session session(String name) {
+		int id = users.id(name);
+		return id < 0 ? null : sessions[id];
+	}
+
+	// the login attempts of a name, registered or not
+	private LoginAttempts loginAttempts(String name) {
+		Session session = session(name);
+		if (session != null) {
+			return session.getLoginAttempts();
+		}
+		LoginAttempts attempts = strangers.get(name);
+		if (attempts == null) {
+			attempts = new LoginAttempts();
+			LoginAttempts old = strangers.putIfAbsent(name, attempts);
+			if (old != null) {
+				attempts = old;
+			}
+		}
+		return attempts;
+	}
+
+	// forget the names that are not registered and have been left alone
+	private void forgetStrangers() {
+		long now = System.currentTimeMillis();
+		Iterator<Map.Entry<String, LoginAttempts>> entries = strangers.entrySet().iterator();
+		while (entries.hasNext()) {
+			if (entries.next().getValue().isIdle(now, BLOCK_TIME)) {
+				entries.remove();
+			}
+		}
+	}
+
 	// start accept socket from client, for each accepted socket, create a new
 
 	// accept sockets, create a new serverThread for each accepted socket
@@ -129,7 +398,7 @@ public class Server {
 				Socket socket = serverSocket.accept();
 				if (socket.isConnected()) {
 					// create a new thread for this line
-					new ServerThread(socket);
+					threads.newThread(new ServerThread(socket)).start();
 				}
 			} catch (IOException e) {
 				e.printStackTrace();
@@ -137,647 +406,2538 @@ public class Server {
 
 		}
 	}
-	
-	/* check if heartbeat are still there
-	 * logout users who lost heartbeat
-	 * */
-	public class CheckHeartbeat extends Thread {
-		// constructor
-		public CheckHeartbeat() {
-			ScheduledExecutorService exec = Executors.newSingleThreadScheduledExecutor();
-			exec.scheduleAtFixedRate(new Runnable() {
+
+	// Thread.ofVirtual().factory(), looked up by reflection so that the
+	// server still builds and runs on JDKs without virtual threads
+	private ThreadFactory virtualThreadFactory() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+			return (ThreadFactory) factory.invoke(builder);
+		} catch (Exception e) {
+			System.out.println("Virtual threads need Java 21, using platform threads.");
+			return Executors.defaultThreadFactory();
+		}
+	}
+
+	// hand a frame for a logged in user to his outbox, the sender does not
+	// wait for it to be written
+	private void enqueue(Session user, Frame frame) {
+		Outbox outbox = user.getOutbox();
+		if (!outbox.offer(frame, options.queueSize)) {
+			overflow(user, frame);
+			if (frame instanceof PageFrame) {
+				((PageFrame) frame).written(false);
+			}
+			return;
+		}
+		if (outbox.startWriter()) {
+			writers.execute(new Writer(user));
+		}
+	}
+
+	// who is logged in now, made again only if someone logged in or out
+	// since the last one. The version is read first, so a change while it
+	// is made leaves it out of date
+	private Presence presence() {
+		Presence current = presence;
+		int version = presenceVersion.get();
+		if (current == null || current.version != version) {
+			BitSet online = loggedInUsers.snapshot();
+			if (cluster != null) {
+				online.or(cluster.remoteOnline());
+			}
+			current = new Presence(version, online, users, ONLINE_PAGE);
+			presence = current;
+		}
+		return current;
+	}
+
+	// send a message to the members of a room on this server but the sender
+	// and those who blocked him, the members who are not logged in get it
+	// offline. It only looks at the members. False if one of them blocked
+	// the sender
+	private boolean sendToRoom(Session from, BitSet blockers, String room, String msg) {
+		BitSet members = rooms.members(room);
+		boolean sendAll = !members.intersects(blockers);
+		members.andNot(blockers);
+		members.clear(from.id);
+		String text = "[" + room + "] " + from.name + ": " + msg;
+		BitSet receivers = new BitSet();
+		for (int id = members.nextSetBit(0); id >= 0; id = members.nextSetBit(id + 1)) {
+			if (sessions[id].isLoggedIn()) {
+				receivers.set(id);
+			} else {
+				storeOffline(sessions[id], text);
+			}
+		}
+		deliver(receivers, Frame.text(text));
+		return sendAll;
+	}
+
+	// send a frame to many users, each shard sends it to its own
+	private void deliver(BitSet receivers, final Frame frame) {
+		if (shards == null) {
+			for (int id = receivers.nextSetBit(0); id >= 0; id = receivers.nextSetBit(id + 1)) {
+				enqueue(sessions[id], frame);
+			}
+			return;
+		}
+		BitSet[] parts = new BitSet[shards.length];
+		for (int id = receivers.nextSetBit(0); id >= 0; id = receivers.nextSetBit(id + 1)) {
+			int shard = id % shards.length;
+			if (parts[shard] == null) {
+				parts[shard] = new BitSet();
+			}
+			parts[shard].set(id);
+		}
+		for (int shard = 0; shard < shards.length; shard++) {
+			final BitSet part = parts[shard];
+			if (part == null) {
+				continue;
+			}
+			shards[shard].post(new Runnable() {
 				@Override
 				public void run() {
-					for (String user : loggedInUsersWithIP.keySet()){
-						if (heartbeat.containsKey(user)){
-							// if user has not send heart beat for LOGOUT_TIME, logout the user
-							if (System.currentTimeMillis() - heartbeat.get(user) > LOGOUT_TIME){
-								Socket socket = connectedUsers.get(user);
-								try {
-									DataOutputStream out = new DataOutputStream(socket.getOutputStream());
-									out.writeUTF("logout");
-									out.flush();
-									socket.close();
-								} catch (IOException e) {
-									e.printStackTrace();
-								}
-								
-								connectedUsers.remove(user);
-								loggedInUsersWithIP.remove(user);
-								loggedInUsersWithPort.remove(user);
-								
-							}
-						}
-						
+					for (int id = part.nextSetBit(0); id >= 0; id = part.nextSetBit(id + 1)) {
+						enqueue(sessions[id], frame);
 					}
 				}
-			}, 0, CHECK_HEARTBEAT_TIME, TimeUnit.SECONDS);
+			});
 		}
 	}
-	
-
-	/*
-	 * Nested class under Server ServerThread extends Thread defines everything
-	 * a server has to do towards one client Making it nested under Server for
-	 * some reasons: 1. it belongs to a server in logic 2. it is easier to
-	 * access variables belongs to Server
-	 */
-	public class ServerThread extends Thread {
-		// socket on the Server side to connect to one client
-		private Socket socket;
-		private String username;
-
-		// in and out stream for the above socket
-		private DataInputStream input;
-		private DataOutputStream output;
 
-		private String clientServerSocketIP;
-		private int clientServerSocketPort;
-		
-		// constructor
-		public ServerThread(Socket socket) throws IOException {
-			// initialization
-			this.socket = socket;
+	// run a task on the shard that owns a user, at once if there are no shards
+	private void onShard(Session user, Runnable task) {
+		if (shards == null) {
+			task.run();
+		} else {
+			shards[user.id % shards.length].post(task);
+		}
+	}
 
-			input = new DataInputStream(socket.getInputStream());
-			output = new DataOutputStream(socket.getOutputStream());
+	// a user of this server logged in or out, the other nodes of a cluster
+	// are told. Called holding the lock of the session, so that they hear
+	// of the logins and logouts of a user in order
+	private void markLoggedIn(Session user) {
+		loggedInUsers.add(user.id);
+		presenceVersion.incrementAndGet();
+		if (cluster != null) {
+			cluster.presence(user.id, true);
+		}
+	}
 
-			// once constructed a new server thread, start run()
-			start();
+	private void markLoggedOut(Session user) {
+		loggedInUsers.remove(user.id);
+		presenceVersion.incrementAndGet();
+		if (cluster != null) {
+			cluster.presence(user.id, false);
 		}
+	}
 
-		// @Override
-		public void run() {
-			// check if the login info is consistent with the user side
-			boolean loggedIn = false;
-			// store the current command for logout to catch exception
-			String[] command = null;
+	// keep a message until the user logs in again
+	private void storeOffline(Session user, String msg) {
+		try {
+			offline.append(user.name, msg);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
 
-			// if user is not logged in, ask him to login, otherwise, skip login
-			try {
-				String checkLogin = input.readUTF();
-				String lines = input.readUTF();
-				
-				// if the information stored at client and server are the same,
-				// see the user as logged in
-				if (checkLogin.charAt(0) == '*') {
-					if (loggedInUsersWithIP.containsKey(checkLogin.substring(1))) {
-						loggedIn = true;
-						username = checkLogin.substring(1);
+	// send a logged in user his next page of offline messages, through his
+	// outbox so that neither the login nor the command waits for it. The
+	// page stays on disk until all of its frames are written
+	private void sendOffline(final Session user, final boolean asked) {
+		// one page at a time, the next is read once the one before is written
+		final int login = user.startOffline(asked);
+		if (login == 0) {
+			return;
+		}
+		writers.execute(new Runnable() {
+			public void run() {
+				OfflineStore.Page page;
+				try {
+					page = offline.read(user.name, OFFLINE_PAGE);
+					if (page.messages.isEmpty()) {
+						// messages too old to give out are passed over
+						offline.given(user.name, page);
 					}
+				} catch (IOException e) {
+					e.printStackTrace();
+					offlineSent(user, login);
+					return;
 				}
-				if (!loggedIn) {
-					// run login process
-					username = login();
+				if (page.messages.isEmpty()) {
+					if (asked) {
+						enqueue(user, Frame.text("You have no offline messages."));
+					}
+					offlineSent(user, login);
+					return;
 				}
-
-				// add this user to connectedUsers
-				if (!connectedUsers.containsKey(username)) {
-					connectedUsers.put(username, socket);
+				// many messages to a frame, so they are written and flushed together
+				List<String> texts = new ArrayList<String>();
+				StringBuilder batch = new StringBuilder("Here is your offline messages:");
+				int lines = 1;
+				for (String msg : page.messages) {
+					if (lines == OFFLINE_BATCH) {
+						texts.add(batch.toString());
+						batch.setLength(0);
+						lines = 0;
+					}
+					if (lines > 0) {
+						batch.append("\r\n");
+					}
+					batch.append(msg);
+					lines++;
 				}
+				batch.append("\r\n");
+				if (page.more) {
+					batch.append("=====There are more, type offline to get them=====");
+				} else {
+					batch.append("================================");
+				}
+				texts.add(batch.toString());
+				AtomicInteger unwritten = new AtomicInteger(texts.size());
+				AtomicBoolean failed = new AtomicBoolean();
+				for (String text : texts) {
+					enqueue(user, new PageFrame(text, user, login, page, unwritten, failed));
+				}
+			}
+		});
+	}
 
-				// set timeout
-				socket.setSoTimeout(CONNECT_TIMEOUT);
+	// a page of offline messages is done, send the next if the user asked
+	// for it meanwhile. A page whose frames were cleared from the outbox is
+	// never done, the next login starts over
+	private void offlineSent(Session user, int login) {
+		if (user.endOffline(login)) {
+			sendOffline(user, true);
+		}
+	}
 
-				if (lines.equals("New Start")) {
-					lines = input.readUTF();
-				}
-				
-				boolean first = true;
-				do {
-					
-						if (!first) {
-							lines = input.readUTF();
-						}
-						command = lines.split("\\s+");
-						// handle commands
-						if (command[0].equals("message")) {
-							if (command.length < 3) {
-								output.writeUTF("Wrong format, use: message <user> <message>");
-								output.flush();
-							} else {
-								String msg = "";
-								for (int i = 2; i < command.length; i++){
-									msg += command[i] + " ";
-								}
-								message(command[1], msg);
-							}
-						} else if (command[0].equals("broadcast")) {
-							if (command.length < 2) {
-								output.writeUTF("Wrong format, use: broadcast <message>");
-								output.flush();
-							} else {
-								String msg = "";
-								for (int i = 1; i < command.length; i++){
-									msg += command[i] + " ";
-								}
-								broadcast(msg);
-							}
-						} else if (command[0].equals("online")){
-							online();
-						} else if (command[0].equals("block")){
-							if (command.length != 2) {
-								output.writeUTF("Wrong format, use: block <user>");
-								output.flush();
-							} else {
-								block(command[1]);
-							}
-						} else if (command[0].equals("unblock")){
-							if (command.length != 2) {
-								output.writeUTF("Wrong format, use: unblock <user>");
-								output.flush();
-							} else {
-								unblock(command[1]);
-							}
-						} else if (command[0].equals("getaddress")){
-							if (command.length != 2) {
-								output.writeUTF("Wrong format, use: getaddress <user>");
-								output.flush();
-							} else {
-								getAddress(command[1]);
-							}
-						} 
-						else if (command[0].equals("private")) {
-							if (command.length < 3) {
-								output.writeUTF("Wrong format, use: private <user> <message>");
-								output.flush();
-							} else {
-								getConsent(command[1]);
-							}
-						}
-						else if (command[0].equals("logout")) {
-							connectedUsers.remove(username);
-							loggedInUsersWithIP.remove(username);
-							loggedInUsersWithPort.remove(username);
-							output.writeUTF("logout");
-							output.flush();
-							socket.close();
-						}
-						else if (command[0].equals("LIVE")){
-							heartbeat.put(command[1], System.currentTimeMillis());
-						}
-						else if (command != null){
-							output.writeUTF("Invalid command.");
-							output.flush();
-							showCommands();
-						}
-						
-						first = false;
+	/*
+	 * PageFrame is one frame of a page of offline messages. The frames of a
+	 * page share what is left to write of it and whether one of them was
+	 * not written. Once the last one is done the page is given, unless one
+	 * was dropped or could not be written; then it stays on disk and is
+	 * sent again with the next offline or login
+	 */
+	public class PageFrame extends Frame {
+		private Session user;
+		private int login;
+		private OfflineStore.Page page;
+		private AtomicInteger unwritten;
+		private AtomicBoolean failed;
 
-					}  while (true);
+		public PageFrame(String text, Session user, int login, OfflineStore.Page page, AtomicInteger unwritten,
+				AtomicBoolean failed) {
+			super(Frame.TEXT, null, text, 0);
+			this.user = user;
+			this.login = login;
+			this.page = page;
+			this.unwritten = unwritten;
+			this.failed = failed;
+		}
 
-			} catch (SocketTimeoutException e) {
-				// If user has not send any message for a period of
-				// time, disconnect with the user
-				System.out.println(username + " has time out, disconnected");
-				try {
-					output.writeUTF("disconnect");
-					output.flush();
-				} catch (IOException e2) {
-					e2.printStackTrace();
-				}
-				connectedUsers.remove(username);
+		public void written(boolean ok) {
+			if (!ok) {
+				failed.set(true);
+			}
+			if (unwritten.decrementAndGet() > 0) {
+				return;
+			}
+			if (!failed.get()) {
 				try {
-					socket.close();
-				} catch (IOException e1) {
-					e1.printStackTrace();
+					offline.given(user.name, page);
+				} catch (IOException e) {
+					e.printStackTrace();
 				}
-			} catch (IOException e) {
-				// when ctr+C is used by user
-				connectedUsers.remove(username);
-				loggedInUsersWithIP.remove(username);
-				loggedInUsersWithPort.remove(username);
-				
-				//catchIOException();
 			}
-
+			offlineSent(user, login);
 		}
+	}
 
-		// handle broadcast messages command: to send a message to all online users
-		public void broadcast(String msg) throws IOException {
-			boolean sendAll = true;
-			// to every logged in users
-			for (String user : loggedInUsersWithIP.keySet()) {
-				boolean blocked = false;
-				// check is user has blocked the message sender
-				if (blockedBy.containsKey(username)){
-					if (blockedBy.get(username).contains(user)){
-						blocked = true;
-						sendAll = false;
-					}
-				}
-				
-				// exclude the message sender and whoever blocked him/her
-				if (!user.equals(username) && !blocked){
-					// if this user is currently connected, directly send message
-					if (connectedUsers.containsKey(user)) {
-						DataOutputStream out = new DataOutputStream(connectedUsers.get(user).getOutputStream());
-						out.writeUTF(username + ": " + msg);
-						out.flush();
-					} else {
-						Socket tempSocket = new Socket(loggedInUsersWithIP.get(user), loggedInUsersWithPort.get(user));
-						DataOutputStream out = new DataOutputStream(tempSocket.getOutputStream());
-						out.writeUTF("");
-						out.flush();
-						out.writeUTF(username + ": " + msg);
-						out.flush();
-						out.close();
-						tempSocket.close();
-					}
+	// the outbox of a user is full, he does not read as fast as he is sent to
+	private void overflow(Session user, Frame frame) {
+		switch (options.overflow) {
+		case Outbox.SPILL:
+			// a page of offline messages is still on disk
+			if (frame.opcode == Frame.TEXT && !(frame instanceof PageFrame)) {
+				storeOffline(user, frame.text);
+				Outbox.spilled.incrementAndGet();
+				return;
+			}
+			Outbox.dropped.incrementAndGet();
+			break;
+		case Outbox.DISCONNECT:
+			Connection conn;
+			synchronized (user) {
+				conn = user.getConnection();
+				if (!user.logout(user.getGeneration())) {
+					return;
 				}
+				markLoggedOut(user);
+				liveness.remove(user);
 			}
-			if(!sendAll){
-				output.writeUTF("Your message could not be delivered to some recipient because they blocked you");
-				output.flush();
+			user.getOutbox().clear();
+			Outbox.disconnected.incrementAndGet();
+			System.out.println(user.name + " is too slow to read, logged out");
+			if (conn != null) {
+				try {
+					// written after what is queued, if he reads it in CLOSE_TIME
+					conn.send(Frame.of(Frame.LOGOUT));
+					conn.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
 			}
-			
+			break;
+		default:
+			Outbox.dropped.incrementAndGet();
 		}
+	}
 
-		// handle message command: to send a message through server
-		public void message(String user, String msg) throws IOException {
-			// if receiver is not a valid username, alert the user
-			if (!allUsers.contains(user)) {
-				output.writeUTF("There is no user: " + user);
-				output.flush();
-				return;
+	// write one frame to a logged in user, false if it was not written
+	private boolean write(Session user, Frame frame, boolean flush) {
+		// if receiver is connected now, directly send message
+		Connection conn = user.getConnection();
+		if (conn != null) {
+			// a channel takes every frame at once and writes it later, what
+			// it has not written yet counts against the outbox
+			if (conn.backlog() >= options.queueSize) {
+				overflow(user, frame);
+				return false;
 			}
-			// if receiver has blocked this user
-			if (blockedBy.containsKey(username)){
-				if (blockedBy.get(username).contains(user)){
-					output.writeUTF("You are blocked by " + user + ". You can't send him/her message");
-					output.flush();
-					return;
-				}
+			try {
+				conn.send(frame, flush);
+				return true;
+			} catch (IOException e) {
+				// the connection is gone, send the frame as if it never was
+				user.disconnect(conn);
 			}
-			// if receiver is not logged in, store message in offilineMsg
-			if (!loggedInUsersWithIP.containsKey(user)) {
-				List<String> list;
-				if (offlineMsg.containsKey(user)){
-					list = new ArrayList<String>(offlineMsg.get(user));
-				} else {
-					list = new ArrayList<String>();	
+		}
+		// a persistent connection has just dropped, keep the message for later
+		if (user.isPersistent()) {
+			// a page of offline messages is still on disk
+			if (frame.opcode == Frame.TEXT && !(frame instanceof PageFrame)) {
+				storeOffline(user, frame.text);
+			}
+			return false;
+		}
+		// else: receiver is logged in, but not connected now
+		// contact receiver, create socket, send message
+		else {
+			ReverseConnection out = null;
+			try {
+				out = reverse.take(user);
+				out.send(frame, flush);
+				reverse.give(out);
+				return true;
+			} catch (IOException e) {
+				e.printStackTrace();
+				// a failed dial is counted by the pool
+				if (out != null) {
+					metrics.reverseFailures.incrementAndGet();
 				}
-				list.add(username + ": " + msg);
-				offlineMsg.put(user, list);
-				output.writeUTF(user + " is not online now. Offline message send.");
-				output.flush();
+				reverse.discard(out);
+				return false;
 			}
-			// if receiver is connected now, directly send message
-			else if (connectedUsers.containsKey(user)) {
-				DataOutputStream out = new DataOutputStream(connectedUsers.get(user).getOutputStream());
-				out.writeUTF(username + ": " +msg);
-				out.flush();
+		}
+	}
+
+	/*
+	 * Shard owns the users whose id leaves its index modulo the number of
+	 * shards. It runs on one thread and takes tasks from a lock-free queue:
+	 * the commands of its users, and what other users' commands do to its
+	 * users (a message to deliver, a block, a private chat request). So the
+	 * state of a user is only changed by one thread, and users on different
+	 * shards never wait for each other
+	 */
+	public class Shard implements Runnable {
+		private ConcurrentLinkedQueue<Runnable> inbox = new ConcurrentLinkedQueue<Runnable>();
+		private Thread thread;
+		// set while the thread is about to park or parked, so posters wake it
+		private volatile boolean parked = false;
+		private volatile boolean running = true;
+
+		public Shard(int index) {
+			thread = threads.newThread(this);
+			thread.setName("shard-" + index);
+			thread.start();
+		}
+
+		public void post(Runnable task) {
+			inbox.add(task);
+			if (parked) {
+				LockSupport.unpark(thread);
 			}
-			// else: receiver is logged in, but not connected now
-			// contact receiver, create socket, send message
-			else {
-				Socket tempSocket = new Socket(loggedInUsersWithIP.get(user), loggedInUsersWithPort.get(user));
+		}
 
-				DataOutputStream out = new DataOutputStream(tempSocket.getOutputStream());
-				out.writeUTF("");
-				out.flush();
-				out.writeUTF(username + ": " + msg);
-				out.flush();
-				out.close();
-				tempSocket.close();
+		public void stop() {
+			running = false;
+			LockSupport.unpark(thread);
+		}
 
+		@Override
+		public void run() {
+			currentShard.set(this);
+			while (running) {
+				Runnable task = inbox.poll();
+				if (task == null) {
+					parked = true;
+					// a task posted before parked was set is seen here
+					if (inbox.isEmpty() && running) {
+						LockSupport.park(this);
+					}
+					parked = false;
+					continue;
+				}
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					// one bad task does not stop the shard
+					e.printStackTrace();
+				}
 			}
-			
 		}
-		
-		// handle online command: to list logged in users
-		public void online() throws IOException{
-			
-			// to every logged in users
-			for (String user : loggedInUsersWithIP.keySet()) {
-				// exclude the message sender
-				String str = "";
-				if (!user.equals(username)){
-					str += (user + "\r\n");
+	}
+
+	/*
+	 * Writer empties the outbox of one user, in the order the frames came.
+	 * There is at most one writer per user, it ends when the outbox is empty
+	 */
+	public class Writer implements Runnable {
+		private Session user;
+
+		public Writer(Session user) {
+			this.user = user;
+		}
+
+		@Override
+		public void run() {
+			Outbox outbox = user.getOutbox();
+			do {
+				Frame frame;
+				while ((frame = outbox.poll()) != null) {
+					// written out with the last one queued
+					boolean written = write(user, frame, outbox.depth() == 0);
+					if (frame instanceof PageFrame) {
+						((PageFrame) frame).written(written);
+					}
 				}
-				output.writeUTF(str);
-				output.flush();
-			}				
+			} while (outbox.stopWriter());
 		}
-		
-		// handle block command: to block a user
-		public void block(String user) throws IOException {
-			// if receiver is not a valid username, alert the user
-			if (!allUsers.contains(user)) {
-				output.writeUTF("There is no user: " + user);
-				output.flush();
-			}
-			// add user to block list
-			else {
-				if (blockedBy.containsKey(user)){
-					List<String> list = new ArrayList<String>(blockedBy.get(user));
-					list.add(username);
-					blockedBy.put(user, list);
-				} else {
-					List<String> list = new ArrayList<String>();
-					list.add(username);
-					blockedBy.put(user, list);
+	}
+
+	// open a socket to the server socket of a client, an unreachable client
+	// fails after DIAL_TIMEOUT instead of the minutes a connect can take
+	private Socket dial(String ip, int port) throws IOException {
+		Socket socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress(ip, port), DIAL_TIMEOUT);
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+		return socket;
+	}
+
+	// tell a client whose user has logged in from another place that it is
+	// logged out. It runs on a writer thread, what it knows of the old
+	// login is given as the session has the new one by then
+	private void callOff(String ip, int port, boolean binary, boolean compress) {
+		SocketConnection conn = null;
+		metrics.reverseDials.incrementAndGet();
+		try {
+			conn = new SocketConnection(dial(ip, port));
+			greet(conn, binary, compress, "");
+			conn.send(Frame.of(Frame.LOGOUT));
+		} catch (IOException e) {
+			// the client is gone already
+			metrics.reverseFailures.incrementAndGet();
+		} finally {
+			if (conn != null) {
+				try {
+					conn.close();
+				} catch (IOException e) {
+					// closed already
 				}
-				output.writeUTF("User " + user + " has been blocked");
-				output.flush();
 			}
 		}
-		
-		// handle unblock command: to unblock a user
-		public void unblock(String user) throws IOException {
-			// if receiver is not a valid username, alert the user
-			if (!allUsers.contains(user)) {
-				output.writeUTF("There is no user: " + user);
-				output.flush();
+	}
+
+	// start a connection to the server socket of a client that is logged in
+	// but not connected. The first line tells the client that it is the
+	// server calling, for binary clients it also says binary frames follow,
+	// compressed if the client agreed to that at login
+	private void greet(SocketConnection conn, boolean binary, boolean compress, String first) throws IOException {
+		if (binary) {
+			conn.send(BINARY_HELLO);
+			conn.startBinary();
+			if (compress) {
+				conn.startCompress();
 			}
-			// remove user from block list
-			else {
-				if (blockedBy.containsKey(user)){
-					List<String> list = new ArrayList<String>(blockedBy.get(user));
-					if (list.contains(username)){
-						list.remove(username);
-					}
-					blockedBy.put(user, list);
-				} 
-				output.writeUTF("User " + user + " has been unblocked");
-				output.flush();
+		} else {
+			conn.send(first);
+		}
+	}
+
+	/*
+	 * ReversePool keeps the connections the server opened to clients open
+	 * for a while after use, by the address of the client's server socket,
+	 * so that a burst of frames to a user who is not connected goes over
+	 * one socket instead of a connection each. A connection is closed once
+	 * it has not been used for REVERSE_IDLE_TIME, and at most
+	 * REVERSE_PER_HOST are kept to one host; past that a connection is
+	 * closed after use as before
+	 */
+	public class ReversePool {
+		// the connections not in use, by "ip:port", the last used at the end
+		private Map<String, ArrayDeque<ReverseConnection>> idle;
+		// how many connections are kept to each ip, in use or not
+		private Map<String, Integer> kept;
+
+		public ReversePool() {
+			idle = new HashMap<String, ArrayDeque<ReverseConnection>>();
+			kept = new HashMap<String, Integer>();
+
+			timers.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					evict();
+				}
+			}, REVERSE_IDLE_TIME, REVERSE_IDLE_TIME / 2, TimeUnit.MILLISECONDS);
+		}
+
+		// a connection to a logged in user, one that is open already if there is one
+		public ReverseConnection take(Session user) throws IOException {
+			String ip = user.getIP();
+			String key = ip + ":" + user.getPort();
+			int generation = user.getGeneration();
+			boolean keep;
+			List<ReverseConnection> stale = new ArrayList<ReverseConnection>();
+			ReverseConnection conn = null;
+			synchronized (this) {
+				ArrayDeque<ReverseConnection> conns = idle.get(key);
+				while (conn == null && conns != null && !conns.isEmpty()) {
+					conn = conns.pollLast();
+					// left from a login that is over
+					if (conn.user != user || conn.generation != generation) {
+						stale.add(conn);
+						conn = null;
+					}
+				}
+				keep = conn == null && count(ip) < REVERSE_PER_HOST;
+				if (keep) {
+					kept.put(ip, count(ip) + 1);
+				}
+			}
+			for (ReverseConnection old : stale) {
+				discard(old);
+			}
+			if (conn != null) {
+				metrics.reverseReused.incrementAndGet();
+				return conn;
+			}
+
+			metrics.reverseDials.incrementAndGet();
+			try {
+				conn = new ReverseConnection(dial(ip, user.getPort()), key, user, generation, keep);
+			} catch (IOException e) {
+				metrics.reverseFailures.incrementAndGet();
+				if (keep) {
+					release(ip);
+				}
+				throw e;
+			}
+			try {
+				greet(conn, user.isBinary(), user.isCompressed(), "");
+			} catch (IOException e) {
+				metrics.reverseFailures.incrementAndGet();
+				discard(conn);
+				throw e;
+			}
+			// the client sends commands on it as well
+			if (keep) {
+				threads.newThread(conn).start();
+			}
+			return conn;
+		}
+
+		// the frames have been sent, keep the connection for the next ones
+		public void give(ReverseConnection conn) {
+			synchronized (this) {
+				if (conn.kept) {
+					conn.lastUsed = System.currentTimeMillis();
+					ArrayDeque<ReverseConnection> conns = idle.get(conn.key);
+					if (conns == null) {
+						conns = new ArrayDeque<ReverseConnection>();
+						idle.put(conn.key, conns);
+					}
+					conns.addLast(conn);
+					return;
+				}
+			}
+			discard(conn);
+		}
+
+		// close a connection that is broken or not to be kept
+		public void discard(ReverseConnection conn) {
+			if (conn == null) {
+				return;
+			}
+			try {
+				conn.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		// the connection is closed, it no longer counts against its host
+		private synchronized void closed(ReverseConnection conn) {
+			if (!conn.kept) {
+				return;
+			}
+			conn.kept = false;
+			release(conn.ip);
+			ArrayDeque<ReverseConnection> conns = idle.get(conn.key);
+			if (conns != null) {
+				conns.remove(conn);
+				if (conns.isEmpty()) {
+					idle.remove(conn.key);
+				}
+			}
+		}
+
+		private int count(String ip) {
+			Integer count = kept.get(ip);
+			return count == null ? 0 : count;
+		}
+
+		private synchronized void release(String ip) {
+			int count = count(ip) - 1;
+			if (count > 0) {
+				kept.put(ip, count);
+			} else {
+				kept.remove(ip);
+			}
+		}
+
+		// close the connections that have not been used for REVERSE_IDLE_TIME
+		private void evict() {
+			long before = System.currentTimeMillis() - REVERSE_IDLE_TIME;
+			List<ReverseConnection> old = new ArrayList<ReverseConnection>();
+			synchronized (this) {
+				for (ArrayDeque<ReverseConnection> conns : idle.values()) {
+					// the least recently used are first
+					while (!conns.isEmpty() && conns.peekFirst().lastUsed < before) {
+						old.add(conns.pollFirst());
+					}
+				}
+			}
+			for (ReverseConnection conn : old) {
+				// the client sends its commands on a new connection from now on
+				try {
+					conn.send(Frame.of(Frame.DISCONNECT));
+				} catch (IOException e) {
+					// closed by the client already
+				}
+				discard(conn);
+			}
+		}
+	}
+
+	/*
+	 * Cluster lets several servers share the users of one credentials file.
+	 * Every user lives on one node, found by consistent hashing of his
+	 * name, and logs in there: the other nodes send his client on. Each node
+	 * opens a link to every other node, over the other's client port, and
+	 * sends it one line per event: who logged in and out, so every node
+	 * knows who is online on the others, and the messages, broadcasts,
+	 * address requests and blocks that concern the users of that node.
+	 * The user ids are the same on every node, they come from the same file
+	 */
+	public class Cluster {
+		// the "ip:port" of every node, and the index of this one
+		private List<String> nodes;
+		private int self;
+		// the node of every user, by user id
+		private int[] homes;
+		// the links to the other nodes, null for this one
+		private PeerLink[] links;
+		// the users logged in on each node, as its link to here told
+		private UserSet[] online;
+
+		public Cluster(List<String> nodes, int self) {
+			this.nodes = nodes;
+			this.self = self;
+			HashRing ring = new HashRing(nodes, RING_POINTS);
+			homes = new int[users.size()];
+			for (int id = 0; id < homes.length; id++) {
+				homes[id] = ring.node(users.name(id));
+			}
+			links = new PeerLink[nodes.size()];
+			online = new UserSet[nodes.size()];
+			for (int node = 0; node < nodes.size(); node++) {
+				online[node] = new UserSet();
+				if (node != self) {
+					links[node] = new PeerLink(node);
+				}
+			}
+		}
+
+		// start linking to the other nodes, they may come up later
+		public void start() {
+			for (PeerLink link : links) {
+				if (link != null) {
+					threads.newThread(link).start();
+				}
+			}
+		}
+
+		// true if a connection opening a link as the given node comes from
+		// the address of that node and knows the secret of the cluster
+		public boolean isPeer(int node, String remoteAddress, String secret) {
+			if (node < 0 || node >= nodes.size() || node == self) {
+				return false;
+			}
+			String expected = options.clusterSecret == null ? "" : options.clusterSecret;
+			if (!MessageDigest.isEqual(expected.getBytes(UTF8), (secret == null ? "" : secret).getBytes(UTF8))) {
+				return false;
+			}
+			// "/ip:port"
+			String ip = remoteAddress.substring(remoteAddress.indexOf('/') + 1, remoteAddress.lastIndexOf(':'));
+			String address = nodes.get(node);
+			try {
+				for (InetAddress host : InetAddress.getAllByName(address.substring(0, address.lastIndexOf(':')))) {
+					if (host.getHostAddress().equals(ip)) {
+						return true;
+					}
+				}
+			} catch (UnknownHostException e) {
+				// no such node
+			}
+			return false;
+		}
+
+		// true if the user lives on this node
+		public boolean isHome(int id) {
+			return homes[id] == self;
+		}
+
+		// the ip and port of the node a user lives on
+		public String[] address(int id) {
+			String node = nodes.get(homes[id]);
+			int colon = node.lastIndexOf(':');
+			return new String[] { node.substring(0, colon), node.substring(colon + 1) };
+		}
+
+		// the users logged in on the other nodes
+		public BitSet remoteOnline() {
+			BitSet users = new BitSet();
+			for (int node = 0; node < online.length; node++) {
+				if (node != self) {
+					users.or(online[node].snapshot());
+				}
+			}
+			return users;
+		}
+
+		// tell every node a user of this one logged in or out
+		public void presence(int id, boolean loggedIn) {
+			for (PeerLink link : links) {
+				if (link != null) {
+					link.send((loggedIn ? "UP\t" : "DOWN\t") + id);
+				}
+			}
+		}
+
+		// send a message to a user of another node, false if it can't be reached
+		public boolean message(Session from, Session to, String msg) {
+			return links[homes[to.id]].send("MSG\t" + from.id + "\t" + to.id + "\t" + msg);
+		}
+
+		// send a broadcast to the nodes that have users to receive it, the
+		// users who blocked the sender are left out there
+		public void broadcast(Session from, BitSet blockers, String msg) {
+			String ids = ids(blockers);
+			for (int node = 0; node < links.length; node++) {
+				if (links[node] == null) {
+					continue;
+				}
+				BitSet receivers = online[node].snapshot();
+				receivers.andNot(blockers);
+				if (!receivers.isEmpty()) {
+					links[node].send("BCAST\t" + from.id + "\t" + ids + "\t" + msg);
+				}
+			}
+		}
+
+		// a message to a room, every node sends it to the members it keeps
+		public void room(Session from, BitSet blockers, String room, String msg) {
+			String line = "ROOM\t" + from.id + "\t" + ids(blockers) + "\t" + room + "\t" + msg;
+			for (int node = 0; node < links.length; node++) {
+				if (links[node] != null) {
+					links[node].send(line);
+				}
+			}
+		}
+
+		private String ids(BitSet users) {
+			StringBuilder ids = new StringBuilder();
+			for (int id = users.nextSetBit(0); id >= 0; id = users.nextSetBit(id + 1)) {
+				ids.append(ids.length() == 0 ? "" : ",").append(id);
+			}
+			return ids.toString();
+		}
+
+		// ask the node of a user for his address, false if it can't be reached
+		public boolean getAddress(Session from, Session of) {
+			return links[homes[of.id]].send("ADDR?\t" + from.id + "\t" + of.id);
+		}
+
+		// a user blocked or unblocked a user of another node, which keeps
+		// who blocked its users
+		public void block(Session blocker, Session blocked, boolean block) {
+			links[homes[blocked.id]].send((block ? "BLOCK\t" : "UNBLOCK\t") + blocker.id + "\t" + blocked.id);
+		}
+
+		// a line from the link of another node
+		public void received(int node, String line) {
+			String[] fields = line.split("\t", 4);
+			String type = fields[0];
+			try {
+				if (type.equals("UP")) {
+					online[node].add(Integer.parseInt(fields[1]));
+					presenceVersion.incrementAndGet();
+				} else if (type.equals("DOWN")) {
+					online[node].remove(Integer.parseInt(fields[1]));
+					presenceVersion.incrementAndGet();
+				} else if (type.equals("ONLINE")) {
+					// all of them, sent first on a new link
+					online[node].clear();
+					if (fields.length > 1 && fields[1].length() > 0) {
+						for (String id : fields[1].split(",")) {
+							online[node].add(Integer.parseInt(id));
+						}
+					}
+					presenceVersion.incrementAndGet();
+				} else if (type.equals("MSG")) {
+					final int peer = node;
+					final Session from = sessions[Integer.parseInt(fields[1])];
+					final Session to = sessions[Integer.parseInt(fields[2])];
+					final String msg = fields[3];
+					onShard(to, new Runnable() {
+						@Override
+						public void run() {
+							if (to.isLoggedIn()) {
+								enqueue(to, Frame.text(from.name + ": " + msg));
+							} else {
+								storeOffline(to, from.name + ": " + msg);
+								notice(peer, from, to.name + " is not online now. Offline message send.");
+							}
+						}
+					});
+				} else if (type.equals("BCAST")) {
+					Session from = sessions[Integer.parseInt(fields[1])];
+					BitSet receivers = loggedInUsers.snapshot();
+					if (fields[2].length() > 0) {
+						for (String id : fields[2].split(",")) {
+							receivers.clear(Integer.parseInt(id));
+						}
+					}
+					receivers.clear(from.id);
+					deliver(receivers, Frame.text(from.name + ": " + fields[3]));
+				} else if (type.equals("ROOM")) {
+					// the room and the message are in the last field
+					Session from = sessions[Integer.parseInt(fields[1])];
+					BitSet blockers = new BitSet();
+					if (fields[2].length() > 0) {
+						for (String id : fields[2].split(",")) {
+							blockers.set(Integer.parseInt(id));
+						}
+					}
+					String[] room = fields[3].split("\t", 2);
+					sendToRoom(from, blockers, room[0], room[1]);
+				} else if (type.equals("ADDR?")) {
+					Session from = sessions[Integer.parseInt(fields[1])];
+					Session of = sessions[Integer.parseInt(fields[2])];
+					if (of.isLoggedIn()) {
+						links[node].send("ADDR\t" + from.id + "\t" + of.id + "\t" + of.getIP() + " " + of.getPort());
+					} else {
+						notice(node, from, of.name + " is not logged in. Can't get his/her address.");
+					}
+				} else if (type.equals("ADDR")) {
+					Session to = sessions[Integer.parseInt(fields[1])];
+					Session of = sessions[Integer.parseInt(fields[2])];
+					String[] address = fields[3].split(" ");
+					enqueue(to, Frame.address(of.name, address[0], Integer.parseInt(address[1])));
+				} else if (type.equals("BLOCK") || type.equals("UNBLOCK")) {
+					final boolean block = type.equals("BLOCK");
+					final int blocker = Integer.parseInt(fields[1]);
+					final Session blocked = sessions[Integer.parseInt(fields[2])];
+					onShard(blocked, new Runnable() {
+						@Override
+						public void run() {
+							if (block) {
+								blocked.blockedBy(blocker);
+							} else {
+								blocked.unblockedBy(blocker);
+							}
+						}
+					});
+				} else if (type.equals("NOTICE")) {
+					fields = line.split("\t", 3);
+					enqueue(sessions[Integer.parseInt(fields[1])], Frame.text(fields[2]));
+				}
+			} catch (RuntimeException e) {
+				// a line this node does not understand, from a node with another credentials file
+				System.out.println("Bad line from node " + node + ": " + line);
+			}
+		}
+
+		// tell a user of another node something about his command
+		private void notice(int node, Session to, String text) {
+			links[node].send("NOTICE\t" + to.id + "\t" + text);
+		}
+
+		// the link from a node is gone, its users are not known to be online anymore
+		public void lost(int node) {
+			online[node].clear();
+			presenceVersion.incrementAndGet();
+		}
+	}
+
+	/*
+	 * PeerLink is the link from this node to another one of the cluster. It
+	 * speaks the binary protocol, so lines are not limited to 64KB, and
+	 * sends one LINE frame per event from a queue, on its own thread. While
+	 * the other node can't be reached nothing is queued; once connected it
+	 * sends who is logged in here first, then the events as they come
+	 */
+	public class PeerLink implements Runnable {
+		private int node;
+		private String host;
+		private int port;
+		private LinkedBlockingQueue<String> queue = new LinkedBlockingQueue<String>();
+		private volatile boolean connected = false;
+
+		public PeerLink(int node) {
+			this.node = node;
+			String address = options.clusterNodes.get(node);
+			int colon = address.lastIndexOf(':');
+			host = address.substring(0, colon);
+			port = Integer.parseInt(address.substring(colon + 1));
+		}
+
+		// queue a line for the other node, false if it is not connected
+		public boolean send(String line) {
+			if (!connected) {
+				return false;
+			}
+			queue.add(line);
+			return true;
+		}
+
+		@Override
+		public void run() {
+			while (!Thread.currentThread().isInterrupted()) {
+				Socket socket = null;
+				try {
+					socket = new Socket(host, port);
+					socket.setTcpNoDelay(true);
+					DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+					out.writeUTF(BINARY_HELLO);
+					out.write(BinaryCodec.encode(new Frame(Frame.PEER, null, options.clusterSecret, options.clusterNode)));
+
+					// what was queued before is in the list of who is online
+					queue.clear();
+					connected = true;
+					System.out.println("Linked to node " + node + " at " + host + ":" + port);
+					BitSet loggedIn = loggedInUsers.snapshot();
+					StringBuilder ids = new StringBuilder("ONLINE\t");
+					for (int id = loggedIn.nextSetBit(0); id >= 0; id = loggedIn.nextSetBit(id + 1)) {
+						ids.append(ids.length() == 7 ? "" : ",").append(id);
+					}
+					out.write(BinaryCodec.encode(Frame.line(ids.toString())));
+					out.flush();
+
+					List<String> lines = new ArrayList<String>();
+					while (true) {
+						lines.add(queue.take());
+						queue.drainTo(lines);
+						// write all that is waiting, then flush once
+						for (String line : lines) {
+							out.write(BinaryCodec.encode(Frame.line(line)));
+						}
+						out.flush();
+						lines.clear();
+					}
+				} catch (IOException e) {
+					if (connected) {
+						System.out.println("Lost the link to node " + node);
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				connected = false;
+				if (socket != null) {
+					try {
+						socket.close();
+					} catch (IOException e) {
+						// closed already
+					}
+				}
+				try {
+					Thread.sleep(PEER_RETRY_TIME);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+	}
+
+	// accept channels in nio mode, hand each accepted channel to one of a
+	// fixed number of event loops instead of creating a thread for it
+	public void acceptChannels() throws IOException {
+		EventLoop[] loops = new EventLoop[options.eventLoops];
+		for (int i = 0; i < loops.length; i++) {
+			loops[i] = new EventLoop(i);
+		}
+
+		int next = 0;
+		while (true) {
+			try {
+				SocketChannel channel = serverChannel.accept();
+				loops[next].register(channel);
+				next = (next + 1) % loops.length;
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/* check if heartbeat are still there
+	 * logout users who lost heartbeat, the timing wheel tells who they are
+	 * */
+	public class CheckHeartbeat extends TimingWheel {
+		// constructor
+		public CheckHeartbeat() {
+			super(CHECK_HEARTBEAT_TIME, LOGOUT_TIME, threads);
+		}
+
+		// if user has not send heart beat for LOGOUT_TIME, logout the user
+		@Override
+		protected void expired(Session session) {
+			Connection conn;
+			synchronized (session) {
+				conn = session.getConnection();
+				if (!session.expire(System.currentTimeMillis() - LOGOUT_TIME)) {
+					return;
+				}
+				markLoggedOut(session);
+			}
+			metrics.heartbeatExpired.incrementAndGet();
+			System.out.println(session.name + " lost heartbeat, logged out");
+
+			if (conn != null) {
+				try {
+					conn.send(Frame.of(Frame.LOGOUT));
+					conn.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/*
+	 * HeartbeatListener reads the heartbeats clients send as udp datagrams.
+	 * One thread and one buffer serve every client, no connection or thread
+	 * is created for a heartbeat
+	 */
+	public class HeartbeatListener implements Runnable {
+		@Override
+		public void run() {
+			// one byte more than a heartbeat, so a longer datagram is noticed
+			byte[] buffer = new byte[HeartbeatDatagram.SIZE + 1];
+			DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+			while (true) {
+				try {
+					packet.setLength(buffer.length);
+					heartbeatSocket.receive(packet);
+				} catch (IOException e) {
+					e.printStackTrace();
+					continue;
+				}
+				if (!HeartbeatDatagram.isValid(buffer, packet.getLength())) {
+					continue;
+				}
+
+				// only a logged in user with the token of his login counts
+				int id = HeartbeatDatagram.id(buffer);
+				if (id < 0 || id >= sessions.length) {
+					continue;
+				}
+				Session live = sessions[id];
+				if (live.isLoggedIn() && live.getToken() == HeartbeatDatagram.token(buffer)) {
+					live.heartbeat();
+					liveness.schedule(live);
+				}
+			}
+		}
+	}
+
+	/*
+	 * Connection is what a CommandHandler talks to. It hides whether the
+	 * client sits behind a blocking socket or a non-blocking channel, so the
+	 * same handlers work in both server modes, and whether the client
+	 * speaks the writeUTF lines or the binary protocol
+	 */
+	public abstract class Connection {
+		// switched on once the client asked for the binary protocol
+		protected volatile boolean binary = false;
+		// frames to the client may be compressed, once it asked for that
+		protected volatile boolean compress = false;
+
+		// send one frame to the client
+		public void send(Frame frame) throws IOException {
+			send(frame, true);
+		}
+
+		// send one frame, and write it out at once if flush is set and no
+		// one holds the connection. Frames not written out go with the next
+		// that is
+		public abstract void send(Frame frame, boolean flush) throws IOException;
+
+		// the frames sent from now until release are written out together,
+		// calls nest
+		public void hold() {
+		}
+
+		public void release() throws IOException {
+		}
+
+		// send text for the client to print
+		public void send(String msg) throws IOException {
+			send(Frame.text(msg));
+		}
+
+		public boolean isBinary() {
+			return binary;
+		}
+
+		// every frame after this call is binary, in both directions
+		public void startBinary() {
+			binary = true;
+		}
+
+		public boolean isCompressed() {
+			return compress;
+		}
+
+		// frames after this call are compressed when that makes them smaller
+		public void startCompress() {
+			compress = true;
+		}
+
+		// the remote address in the "/ip:port" form of Socket.getRemoteSocketAddress()
+		public abstract String remoteAddress();
+
+		// the user is logged in, start closing the connection when it is idle
+		public abstract void startIdleTimeout() throws IOException;
+
+		// how many frames have been sent but are not written yet, a socket
+		// writes them before send returns
+		public int backlog() {
+			return 0;
+		}
+
+		// close once the frames sent before are written out, or after
+		// CLOSE_TIME if the client does not read them
+		public abstract void close() throws IOException;
+	}
+
+	/*
+	 * SocketConnection wraps a blocking socket, used by ServerThread and for
+	 * the sockets the server opens to a client's serverSocket
+	 */
+	public class SocketConnection extends Connection {
+		protected Socket socket;
+		private DataOutputStream output;
+		// other users' threads write to this socket as well, keep frames whole
+		private final ReentrantLock lock = new ReentrantLock();
+		// how many hold the connection, it is written out when the last one
+		// lets go
+		private int held = 0;
+		// set by a close that found a send in progress, the send closes
+		private volatile boolean closing = false;
+		// frames sent on a shard. A writer writes them, so a client that
+		// does not read never holds up the other users of the shard
+		private final Outbox queued = new Outbox();
+		// a shard closed the connection, the writer closes it after the queue
+		private volatile boolean closeQueued = false;
+
+		public SocketConnection(Socket socket) throws IOException {
+			this.socket = socket;
+			if (options.noDelay) {
+				socket.setTcpNoDelay(true);
+			}
+			output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), SOCKET_BUFFER));
+		}
+
+		public void send(Frame frame, boolean flush) throws IOException {
+			if (currentShard.get() != null) {
+				if (!queued.offer(frame, options.queueSize)) {
+					Outbox.dropped.incrementAndGet();
+					return;
+				}
+				startWriter();
+				return;
+			}
+			write(frame, flush);
+		}
+
+		private void write(Frame frame, boolean flush) throws IOException {
+			lock.lock();
+			try {
+				output.write(binary ? BinaryCodec.encode(frame, compress) : LegacyCodec.bytes(frame));
+				if (flush && held == 0) {
+					output.flush();
+				}
+			} finally {
+				unlock();
+			}
+		}
+
+		public void hold() {
+			lock.lock();
+			try {
+				held++;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		public void release() throws IOException {
+			lock.lock();
+			try {
+				held--;
+				if (held == 0) {
+					output.flush();
+				}
+			} finally {
+				unlock();
+			}
+		}
+
+		// the last one out of a connection that is being closed closes it
+		private void unlock() {
+			try {
+				if (closing && lock.getHoldCount() == 1) {
+					flushAndClose();
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		private void flushAndClose() {
+			try {
+				output.flush();
+			} catch (IOException e) {
+				// closed already
+			}
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// closed already
+			}
+		}
+
+		public String remoteAddress() {
+			return socket.getRemoteSocketAddress().toString();
+		}
+
+		public void startIdleTimeout() throws IOException {
+			socket.setSoTimeout(CONNECT_TIMEOUT);
+		}
+
+		private void startWriter() {
+			if (queued.startWriter()) {
+				writers.execute(new Runnable() {
+					@Override
+					public void run() {
+						drain();
+					}
+				});
+			}
+		}
+
+		// write what the shards sent, flushing after the last one
+		private void drain() {
+			do {
+				Frame frame;
+				while ((frame = queued.poll()) != null) {
+					try {
+						write(frame, queued.depth() == 0);
+					} catch (IOException e) {
+						// the connection is gone, its reader logs the user out
+						queued.clear();
+					}
+				}
+				if (closeQueued) {
+					closeQueued = false;
+					closeSocket();
+				}
+			} while (queued.stopWriter());
+		}
+
+		// a shard leaves the closing to the writer, after what it sent
+		public void close() throws IOException {
+			if (currentShard.get() == null) {
+				closeSocket();
+				return;
+			}
+			closeQueued = true;
+			startWriter();
+			closeLater();
+		}
+
+		// end a write stuck on a client that does not read
+		private void closeLater() {
+			timers.schedule(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						socket.close();
+					} catch (IOException e) {
+						// closed already
+					}
+				}
+			}, CLOSE_TIME, TimeUnit.MILLISECONDS);
+		}
+
+		// write out what is left first. A send in progress closes the socket
+		// when it is done, one stuck on a client that does not read is
+		// ended by closing the socket after CLOSE_TIME
+		private void closeSocket() {
+			closing = true;
+			if (lock.tryLock()) {
+				try {
+					flushAndClose();
+				} finally {
+					lock.unlock();
+				}
+				return;
+			}
+			closeLater();
+		}
+	}
+
+	/*
+	 * ConsentTimeout drops a private chat request that has not been answered
+	 * in CONSENT_TIMEOUT, and tells both users
+	 */
+	public class ConsentTimeout implements Runnable {
+		private Session user;
+		private int request;
+
+		public ConsentTimeout(Session user, int request) {
+			this.user = user;
+			this.request = request;
+		}
+
+		// the request is in the session of the user asked, his shard drops it
+		@Override
+		public void run() {
+			onShard(user, new Runnable() {
+				@Override
+				public void run() {
+					expire();
+				}
+			});
+		}
+
+		private void expire() {
+			int requester = user.expireConsent(request);
+			if (requester < 0) {
+				return;
+			}
+			Session other = sessions[requester];
+			if (other.isLoggedIn()) {
+				enqueue(other, Frame.text(user.name + " did not answer your private chat request."));
+			}
+			if (user.isLoggedIn()) {
+				enqueue(user, Frame.text("The private chat request of " + other.name + " has timed out."));
+			}
+		}
+	}
+
+	/*
+	 * ReverseConnection is a socket the server opened to the server socket of
+	 * a client. The client takes it as its way to the server as well, so
+	 * while it is kept in the pool it has a thread reading the commands the
+	 * user sends on it
+	 */
+	public class ReverseConnection extends SocketConnection implements Runnable {
+		private String key;
+		private String ip;
+		private Session user;
+		// the login the connection was opened for
+		private int generation;
+		// counts against the pool's limit for the host until closed
+		private boolean kept;
+		private volatile long lastUsed;
+
+		public ReverseConnection(Socket socket, String key, Session user, int generation, boolean kept)
+				throws IOException {
+			super(socket);
+			this.key = key;
+			this.ip = user.getIP();
+			this.user = user;
+			this.generation = generation;
+			this.kept = kept;
+			lastUsed = System.currentTimeMillis();
+		}
+
+		// read the commands the client sends on this connection
+		@Override
+		public void run() {
+			CommandHandler handler = new CommandHandler(this, user, generation);
+			try {
+				DataInputStream input = new DataInputStream(socket.getInputStream());
+				while (true) {
+					Frame frame = isBinary() ? BinaryCodec.read(input, isCompressed())
+							: LegacyCodec.decodeCommand(input.readUTF());
+					lastUsed = System.currentTimeMillis();
+					handler.handle(frame);
+				}
+			} catch (IOException e) {
+				// the client closed it, or the pool did
+				reverse.discard(this);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			reverse.closed(this);
+			super.close();
+		}
+	}
+
+	/*
+	 * Nested class under Server EventLoop extends Thread serves many channels
+	 * from one selector in nio mode. It reassembles the writeUTF frames the
+	 * client sends from whatever bytes arrive, and passes each complete line
+	 * to the CommandHandler of that channel
+	 */
+	public class EventLoop extends Thread {
+		private Selector selector;
+		// channels accepted but not yet registered with the selector
+		private Queue<SocketChannel> newChannels;
+		// connections that have frames queued by other threads
+		private Queue<ChannelConnection> pendingWrites;
+		// when the connections were last checked for being idle
+		private long lastIdleCheck = System.currentTimeMillis();
+
+		public EventLoop(int index) throws IOException {
+			super("event-loop-" + index);
+			selector = Selector.open();
+			newChannels = new ConcurrentLinkedQueue<SocketChannel>();
+			pendingWrites = new ConcurrentLinkedQueue<ChannelConnection>();
+			start();
+		}
+
+		// called by the accepting thread
+		public void register(SocketChannel channel) {
+			newChannels.add(channel);
+			selector.wakeup();
+		}
+
+		// called by any thread that queued a frame on a connection of this loop
+		public void wantWrite(ChannelConnection conn) {
+			if (Thread.currentThread() == this) {
+				conn.flushPending();
+			} else {
+				pendingWrites.add(conn);
+				selector.wakeup();
+			}
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				try {
+					// wake up for the next idle check at the latest
+					long wait = lastIdleCheck + IDLE_CHECK_TIME - System.currentTimeMillis();
+					selector.select(Math.max(wait, 1));
+
+					SocketChannel channel;
+					while ((channel = newChannels.poll()) != null) {
+						channel.configureBlocking(false);
+						if (options.noDelay) {
+							channel.socket().setTcpNoDelay(true);
+						}
+						SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+						ChannelConnection conn = new ChannelConnection(channel, key, this);
+						key.attach(conn);
+					}
+
+					ChannelConnection conn;
+					while ((conn = pendingWrites.poll()) != null) {
+						conn.flushPending();
+					}
+
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						conn = (ChannelConnection) key.attachment();
+						if (!key.isValid()) {
+							continue;
+						}
+						if (key.isWritable()) {
+							conn.flushPending();
+						}
+						if (key.isValid() && key.isReadable()) {
+							conn.read();
+						}
+					}
+
+					// time out the logged in connections that have been idle too
+					// long, looking at all of them once every IDLE_CHECK_TIME
+					// instead of after every event
+					long now = System.currentTimeMillis();
+					if (now - lastIdleCheck < IDLE_CHECK_TIME) {
+						continue;
+					}
+					lastIdleCheck = now;
+					for (SelectionKey key : selector.keys()) {
+						conn = (ChannelConnection) key.attachment();
+						if (key.isValid() && conn.isIdle(now)) {
+							conn.handler.timedOut();
+						}
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/*
+	 * ChannelConnection is the non-blocking connection of one client in nio
+	 * mode. Frames sent to it are queued and written by its event loop
+	 */
+	public class ChannelConnection extends Connection {
+		private SocketChannel channel;
+		private SelectionKey key;
+		private EventLoop loop;
+		private CommandHandler handler;
+
+		// bytes received but not yet forming a whole frame, grows as large as
+		// the frame being received
+		private ByteBuffer in;
+		private Queue<ByteBuffer> out;
+		private AtomicInteger outSize = new AtomicInteger();
+		// the frames of one gathering write
+		private ByteBuffer[] gather = new ByteBuffer[GATHER_FRAMES];
+
+		private boolean idleTimeout;
+		private long lastRead;
+		// set by close, the event loop closes the channel once the queue is written
+		private volatile boolean closing = false;
+
+		public ChannelConnection(SocketChannel channel, SelectionKey key, EventLoop loop) {
+			this.channel = channel;
+			this.key = key;
+			this.loop = loop;
+			in = ByteBuffer.allocate(1024);
+			out = new ConcurrentLinkedQueue<ByteBuffer>();
+			lastRead = System.currentTimeMillis();
+			handler = new CommandHandler(this);
+		}
+
+		// the bytes of a frame are encoded once and shared, each connection
+		// only gets a read only view with its own position
+		// the event loop writes all frames queued by then at once, flush or not
+		public void send(Frame frame, boolean flush) throws IOException {
+			byte[] bytes = binary ? BinaryCodec.encode(frame, compress) : LegacyCodec.bytes(frame);
+			out.add(ByteBuffer.wrap(bytes).asReadOnlyBuffer());
+			outSize.incrementAndGet();
+			loop.wantWrite(this);
+		}
+
+		public String remoteAddress() {
+			return channel.socket().getRemoteSocketAddress().toString();
+		}
+
+		public void startIdleTimeout() {
+			idleTimeout = true;
+		}
+
+		public int backlog() {
+			return outSize.get();
+		}
+
+		public boolean isIdle(long now) {
+			return idleTimeout && now - lastRead > CONNECT_TIMEOUT;
+		}
+
+		// other threads close right after a send, so the event loop closes
+		// the channel once it has written the queue
+		public void close() throws IOException {
+			if (closing) {
+				return;
+			}
+			closing = true;
+			loop.wantWrite(this);
+			if (channel.isOpen()) {
+				timers.schedule(new Runnable() {
+					@Override
+					public void run() {
+						closeNow();
+					}
+				}, CLOSE_TIME, TimeUnit.MILLISECONDS);
+			}
+		}
+
+		private void closeNow() {
+			key.cancel();
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// closed already
+			}
+		}
+
+		// write as much of the queue as the channel takes, wait for OP_WRITE for the rest.
+		// Several frames go in one gathering write
+		public void flushPending() {
+			if (!key.isValid()) {
+				return;
+			}
+			try {
+				while (true) {
+					int n = 0;
+					for (ByteBuffer buffer : out) {
+						gather[n++] = buffer;
+						if (n == gather.length) {
+							break;
+						}
+					}
+					if (n == 0) {
+						break;
+					}
+					channel.write(gather, 0, n);
+
+					// drop the frames that have been written whole
+					int written = 0;
+					while (written < n && !gather[written].hasRemaining()) {
+						out.poll();
+						outSize.decrementAndGet();
+						written++;
+					}
+					Arrays.fill(gather, 0, n, null);
+					if (written < n) {
+						// a connection being closed reads nothing more
+						key.interestOps(closing ? SelectionKey.OP_WRITE : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+						return;
+					}
+				}
+				if (closing) {
+					closeNow();
+					return;
+				}
+				key.interestOps(SelectionKey.OP_READ);
+			} catch (IOException e) {
+				if (closing) {
+					closeNow();
+				} else {
+					handler.connectionLost();
+				}
+			}
+		}
+
+		// read what is available and handle every complete frame
+		public void read() {
+			try {
+				if (channel.read(in) < 0) {
+					handler.connectionLost();
+					return;
+				}
+				lastRead = System.currentTimeMillis();
+
+				in.flip();
+				// the client can switch to binary between two frames, and
+				// nothing is handled once the connection is being closed
+				while (channel.isOpen() && !closing) {
+					if (binary) {
+						Frame frame = BinaryCodec.read(in, compress);
+						if (frame == null) {
+							break;
+						}
+						handler.handle(frame);
+					} else {
+						if (in.remaining() < 2) {
+							break;
+						}
+						int length = in.getShort(in.position()) & 0xFFFF;
+						if (in.remaining() < length + 2) {
+							break;
+						}
+						DataInputStream frame = new DataInputStream(
+								new ByteArrayInputStream(in.array(), in.position(), length + 2));
+						String lines = frame.readUTF();
+						in.position(in.position() + length + 2);
+						handler.handle(lines);
+					}
+				}
+				if (!channel.isOpen()) {
+					return;
+				}
+
+				// make room for a frame that is larger than the buffer
+				int needed = binary ? BinaryCodec.frameSize(in) : MAX_FRAME;
+				in.compact();
+				if (!in.hasRemaining() && in.capacity() < needed) {
+					ByteBuffer larger = ByteBuffer.allocate(Math.max(Math.min(in.capacity() * 2, MAX_FRAME), needed));
+					in.flip();
+					larger.put(in);
+					in = larger;
+				}
+			} catch (IOException e) {
+				handler.connectionLost();
+			}
+		}
+	}
+
+	/*
+	 * Nested class under Server ServerThread is the blocking way to serve one
+	 * client: it reads lines from the socket and passes them to a
+	 * CommandHandler. It runs on a platform thread, or on a virtual thread in
+	 * virtual mode
+	 */
+	public class ServerThread implements Runnable {
+		// socket on the Server side to connect to one client
+		private Socket socket;
+
+		// in stream for the above socket
+		private DataInputStream input;
+		private CommandHandler handler;
+
+		// constructor
+		public ServerThread(Socket socket) throws IOException {
+			// initialization
+			this.socket = socket;
+
+			input = new DataInputStream(socket.getInputStream());
+			handler = new CommandHandler(new SocketConnection(socket));
+		}
+
+		// @Override
+		public void run() {
+			try {
+				while (true) {
+					if (handler.output.isBinary()) {
+						handler.handle(BinaryCodec.read(input, handler.output.isCompressed()));
+					} else {
+						handler.handle(input.readUTF());
+					}
+				}
+			} catch (SocketTimeoutException e) {
+				handler.timedOut();
+			} catch (IOException e) {
+				handler.connectionLost();
+			}
+		}
+	}
+
+	/*
+	 * Nested class under Server CommandHandler defines everything a server has
+	 * to do towards one client. Making it nested under Server for some
+	 * reasons: 1. it belongs to a server in logic 2. it is easier to access
+	 * variables belongs to Server. It is fed one line at a time, so the login
+	 * dialogue is kept as a state instead of blocking reads
+	 */
+	public class CommandHandler {
+		// waiting for the line that tells if the client thinks it is logged in
+		private static final int CHECK_LOGIN = 0;
+		// waiting for the first command sent along with the check
+		private static final int FIRST_LINE = 1;
+		private static final int USERNAME = 2;
+		private static final int PASSWORD = 3;
+		// waiting for the client to tell the port of its server socket
+		private static final int SERVER_PORT = 4;
+		private static final int COMMANDS = 5;
+		// the link of another node of the cluster, every frame is one of its lines
+		private static final int PEER = 6;
+
+		private Connection output;
+		private String username;
+		// the session of the user once logged in, and the login it belongs to
+		private Session session;
+		private int generation;
+		private int state = CHECK_LOGIN;
+		// the client asked to keep this connection open instead of reconnecting
+		private boolean persistent = false;
+		// the client would rather send its heartbeats as datagrams
+		private boolean udp = false;
+
+		// what the client sent first, a RESUME frame if it thinks it is logged in
+		private Frame checkLogin;
+		// the command that came with the check, handled once logged in
+		private Frame firstLine;
+		// the username typed in during login
+		private String name;
+		// the node on the other end, for a link from another node
+		private int peer;
+
+		private String clientServerSocketIP;
+		private int clientServerSocketPort;
+
+		public CommandHandler(Connection output) {
+			this.output = output;
+		}
+
+		// the commands a logged in user sends on a connection the server opened
+		public CommandHandler(Connection output, Session session, int generation) {
+			this.output = output;
+			this.session = session;
+			this.generation = generation;
+			username = session.name;
+			state = COMMANDS;
+		}
+
+		// handle one line received from a client speaking the writeUTF protocol
+		public void handle(String lines) throws IOException {
+			switch (state) {
+			case USERNAME:
+			case PASSWORD:
+				// typed in by the user, taken as it is
+				handle(Frame.line(lines));
+				break;
+			case FIRST_LINE:
+			case COMMANDS:
+				handle(LegacyCodec.decodeCommand(lines));
+				break;
+			case PEER:
+				handle(Frame.line(lines));
+				break;
+			default:
+				handle(LegacyCodec.decodeControl(lines));
+			}
+		}
+
+		// handle one frame received from the client, what it answers is
+		// written out at once at the end
+		public void handle(Frame frame) throws IOException {
+			output.hold();
+			try {
+				receive(frame);
+			} finally {
+				output.release();
+			}
+		}
+
+		private void receive(Frame frame) throws IOException {
+			switch (state) {
+			case CHECK_LOGIN:
+				// a heartbeat connection only carries "LIVE" + username
+				if (frame.opcode == Frame.LIVE) {
+					heartbeat(frame.user);
+					return;
+				}
+				// sent before the check by clients started in persistent mode
+				if (frame.opcode == Frame.PERSISTENT) {
+					persistent = true;
+					return;
+				}
+				// sent before the check by clients started with -udp
+				if (frame.opcode == Frame.UDP_HEARTBEAT) {
+					udp = true;
+					return;
+				}
+				// sent after the binary hello by clients that take compressed
+				// frames, the answer goes out before the first compressed one
+				if (frame.opcode == Frame.COMPRESS) {
+					if (output.isBinary()) {
+						output.send(Frame.of(Frame.COMPRESS));
+						output.startCompress();
+					}
+					return;
+				}
+				// another node of the cluster linking to this one, anyone else
+				// would speak for every user
+				if (frame.opcode == Frame.PEER) {
+					if (cluster == null || !cluster.isPeer(frame.number, output.remoteAddress(), frame.text)) {
+						System.out.println("Refused a cluster link from " + output.remoteAddress());
+						output.close();
+						return;
+					}
+					peer = frame.number;
+					state = PEER;
+					return;
+				}
+				// sent first by clients that speak the binary protocol
+				if (frame.opcode == Frame.HELLO && !output.isBinary()) {
+					if (frame.number == BinaryCodec.VERSION) {
+						output.send(LegacyCodec.HELLO_OK + BinaryCodec.VERSION);
+						output.startBinary();
+					} else {
+						output.send("Binary protocol version " + frame.number + " is not supported.");
+						output.close();
+					}
+					return;
+				}
+				checkLogin = frame;
+				state = FIRST_LINE;
+				break;
+			case FIRST_LINE:
+				// if the information stored at client and server are the same,
+				// see the user as logged in, otherwise, ask him to login
+				Session resumed = checkLogin.opcode == Frame.RESUME ? session(checkLogin.user) : null;
+				if (resumed != null && resumed.isLoggedIn()) {
+					username = checkLogin.user;
+					session = resumed;
+					generation = session.getGeneration();
+					startCommands(frame);
+				} else {
+					firstLine = frame;
+					askUsername();
+				}
+				break;
+			case USERNAME:
+				name = textOf(frame);
+				// the user lives on another node of the cluster, send the client there
+				int id = users.id(name);
+				if (cluster != null && id >= 0 && !cluster.isHome(id)) {
+					String[] address = cluster.address(id);
+					output.send(Frame.redirect(name, address[0], Integer.parseInt(address[1])));
+					output.close();
+					return;
+				}
+				// get possword from client
+				output.send("Password: ");
+				state = PASSWORD;
+				break;
+			case PASSWORD:
+				long start = System.nanoTime();
+				login(name + " " + textOf(frame));
+				metrics.login.record(System.nanoTime() - start);
+				break;
+			case SERVER_PORT:
+				// get the user's server socket info
+				if (frame.opcode == Frame.SERVER_PORT) {
+					clientServerSocketIP = output.remoteAddress();
+					clientServerSocketIP = clientServerSocketIP.replaceAll("\\:([0-9]+)", "");
+					clientServerSocketIP = clientServerSocketIP.substring(1);
+					clientServerSocketPort = frame.number;
+				}
+				session = session(name);
+				synchronized (session) {
+					generation = session.login(clientServerSocketIP, clientServerSocketPort, persistent, output.isBinary(),
+							output.isCompressed());
+					markLoggedIn(session);
+				}
+				liveness.schedule(session);
+				username = name;
+				// tell where to send heartbeat datagrams, the client keeps using
+				// tcp if the server was not started with -udp
+				if (udp && heartbeatSocket != null) {
+					output.send(Frame.heartbeatToken(heartbeatSocket.getLocalPort(), session.id, session.getToken()));
+				}
+				startCommands(firstLine);
+				// the offline messages come after the login is done
+				sendOffline(session, false);
+				break;
+			case PEER:
+				cluster.received(peer, textOf(frame));
+				break;
+			default:
+				command(frame);
+			}
+		}
+
+		// the text the user typed in during login
+		private String textOf(Frame frame) {
+			return frame.opcode == Frame.LINE ? frame.text : "";
+		}
+
+		// the user is logged in on this connection, handle the command sent with the check
+		private void startCommands(Frame frame) throws IOException {
+			// the user is connected by this connection now, a persistent
+			// connection replaces whatever connection the user had before
+			session.connect(output, !persistent);
+
+			// set timeout, persistent connections stay open until logout
+			if (!persistent) {
+				output.startIdleTimeout();
+			}
+			state = COMMANDS;
+
+			if (frame.opcode != Frame.NEW_START) {
+				command(frame);
+			}
+		}
+
+		// handle one command of a logged in user, and time it
+		// With shards it runs on the shard of the user, and the time includes
+		// the wait there
+		private void command(final Frame frame) throws IOException {
+			final long start = System.nanoTime();
+			if (shards == null) {
+				try {
+					dispatch(frame);
+				} finally {
+					metrics.command(frame.opcode, start);
+				}
+				return;
+			}
+			// no hold here: on a shard a socket only queues what it is sent,
+			// and its writer flushes after the last frame queued
+			onShard(session, new Runnable() {
+				@Override
+				public void run() {
+					try {
+						dispatch(frame);
+					} catch (IOException e) {
+						// the connection is gone, its reader logs the user out
+					} finally {
+						metrics.command(frame.opcode, start);
+					}
+				}
+			});
+		}
+
+		// answer the user from a task of another shard. The connection only
+		// queues it, one that is gone is left to its reader
+		private void reply(String text) {
+			try {
+				output.send(text);
+			} catch (IOException e) {
+				// closed
+			}
+		}
+
+		private void reply(Frame frame) {
+			try {
+				output.send(frame);
+			} catch (IOException e) {
+				// closed
+			}
+		}
+
+		private void dispatch(Frame frame) throws IOException {
+			// handle commands
+			switch (frame.opcode) {
+			case Frame.MESSAGE:
+				message(frame.user, frame.text);
+				break;
+			case Frame.BROADCAST:
+				broadcast(frame.text);
+				break;
+			case Frame.ONLINE:
+				online(frame.text);
+				break;
+			case Frame.BLOCK:
+				block(frame.user);
+				break;
+			case Frame.UNBLOCK:
+				unblock(frame.user);
+				break;
+			case Frame.GETADDRESS:
+				getAddress(frame.user);
+				break;
+			case Frame.PRIVATE:
+				getConsent(frame.user);
+				break;
+			case Frame.LOGOUT:
+				logout();
+				output.send(Frame.of(Frame.LOGOUT));
+				output.close();
+				break;
+			case Frame.LIVE:
+				heartbeat(frame.user);
+				break;
+			case Frame.OFFLINE:
+				sendOffline(session, true);
+				break;
+			case Frame.JOIN:
+				if (rooms.join(frame.user, session.id)) {
+					output.send("You joined room " + frame.user + ".");
+				} else {
+					output.send("You are already in room " + frame.user + ".");
+				}
+				break;
+			case Frame.LEAVE:
+				if (rooms.leave(frame.user, session.id)) {
+					output.send("You left room " + frame.user + ".");
+				} else {
+					output.send("You are not in room " + frame.user + ".");
+				}
+				break;
+			case Frame.ROOM:
+				room(frame.user, frame.text);
+				break;
+			case Frame.STATS:
+				if (options.admins.contains(username)) {
+					output.send(stats());
+				} else {
+					output.send("Only an admin can see the stats.");
+				}
+				break;
+			case Frame.USAGE:
+				output.send(frame.text);
+				break;
+			default:
+				// the answer to a private chat request sent over a persistent connection
+				if (frame.opcode == Frame.LINE && frame.text.length() == 1 && session.hasConsentRequest()) {
+					switch (frame.text.charAt(0)) {
+					case 'Y':
+					case 'y':
+						answerConsent(true);
+						return;
+					case 'N':
+					case 'n':
+						answerConsent(false);
+						return;
+					}
+				}
+				output.send("Invalid command.");
+				showCommands();
+			}
+		}
+
+		// a logged in user is still there
+		private void heartbeat(String user) {
+			Session live = session(user);
+			if (live != null && live.isLoggedIn()) {
+				live.heartbeat();
+				liveness.schedule(live);
+			}
+		}
+
+		// log the user out, unless he has logged in again since this
+		// connection's login, and forget this connection
+		private void logout() {
+			if (session == null) {
+				return;
+			}
+			synchronized (session) {
+				if (session.logout(generation)) {
+					markLoggedOut(session);
+					liveness.remove(session);
+				}
+				session.disconnect(output);
+			}
+		}
+
+		// If user has not send any message for a period of
+		// time, disconnect with the user
+		public void timedOut() {
+			System.out.println(username + " has time out, disconnected");
+			try {
+				output.send(Frame.of(Frame.DISCONNECT));
+			} catch (IOException e2) {
+				e2.printStackTrace();
+			}
+			if (session != null) {
+				session.disconnect(output);
+			}
+			try {
+				output.close();
+			} catch (IOException e1) {
+				e1.printStackTrace();
+			}
+		}
+
+		// when ctr+C is used by user
+		public void connectionLost() {
+			if (state == PEER) {
+				cluster.lost(peer);
+			}
+			logout();
+			try {
+				output.close();
+			} catch (IOException e) {
+				//e.printStackTrace();
+			}
+		}
+
+		// handle broadcast messages command: to send a message to all online users
+		public void broadcast(String msg) throws IOException {
+			// the same frame, encoded once, goes to everyone
+			Frame frame = Frame.text(username + ": " + msg);
+			// to every logged in users
+			BitSet receivers = loggedInUsers.snapshot();
+			// and those of the other nodes of a cluster
+			BitSet everyone = receivers;
+			if (cluster != null) {
+				everyone = cluster.remoteOnline();
+				everyone.or(receivers);
+			}
+			// check if some of them have blocked the message sender
+			UserSet blockers = session.getBlockedBy();
+			boolean sendAll = !blockers.intersects(everyone);
+
+			// exclude the message sender and whoever blocked him/her
+			blockers.removeFrom(receivers);
+			receivers.clear(session.id);
+			deliver(receivers, frame);
+			// the other nodes send it to their users
+			if (cluster != null) {
+				cluster.broadcast(session, blockers.snapshot(), msg);
+			}
+			if(!sendAll){
+				output.send("Your message could not be delivered to some recipient because they blocked you");
+			}
+
+		}
+
+		// handle room command: to send a message to the members of a chat room
+		public void room(String room, String msg) throws IOException {
+			if (!rooms.contains(room, session.id)) {
+				output.send("You are not in room " + room + ". Join it first.");
+				return;
+			}
+			BitSet blockers = session.getBlockedBy().snapshot();
+			boolean sendAll = sendToRoom(session, blockers, room, msg);
+			// the members of the other nodes are kept there
+			if (cluster != null) {
+				cluster.room(session, blockers, room, msg);
+			}
+			if (!sendAll) {
+				output.send("Your message could not be delivered to some recipient because they blocked you");
+			}
+		}
+
+		// handle message command: to send a message through server
+		public void message(String user, String msg) throws IOException {
+			// if receiver is not a valid username, alert the user
+			Session receiver = session(user);
+			if (receiver == null) {
+				output.send("There is no user: " + user);
+				return;
+			}
+			// if receiver has blocked this user
+			if (session.isBlockedBy(receiver.id)){
+				output.send("You are blocked by " + user + ". You can't send him/her message");
+				return;
+			}
+			// he lives on another node, which delivers it or keeps it for him
+			if (cluster != null && !cluster.isHome(receiver.id)) {
+				if (!cluster.message(session, receiver, msg)) {
+					output.send(user + " is on a server that can't be reached now.");
+				}
+				return;
+			}
+			// the shard of the receiver delivers it
+			final Session to = receiver;
+			final String text = username + ": " + msg;
+			onShard(receiver, new Runnable() {
+				@Override
+				public void run() {
+					// if receiver is not logged in, store message in his session
+					if (!to.isLoggedIn()) {
+						storeOffline(to, text);
+						reply(to.name + " is not online now. Offline message send.");
+					}
+					else {
+						enqueue(to, Frame.text(text));
+					}
+				}
+			});
+
+		}
+
+		// handle online command: to list logged in users
+		// the logged in users of every node of a cluster, a page at a time,
+		// one frame shared by everyone who asks
+		public void online(String page) throws IOException{
+			Presence online = presence();
+			if (page == null || page.length() == 0) {
+				output.send(online.page(1));
+			} else if (page.equals("count")) {
+				output.send(online.count());
+			} else if (page.matches("[0-9]{1,9}")) {
+				output.send(online.page(Integer.parseInt(page)));
+			} else {
+				output.send("Wrong format, use: online [<page>|count]");
+			}
+		}
+
+		// handle block command: to block a user
+		public void block(String user) throws IOException {
+			// if receiver is not a valid username, alert the user
+			Session other = session(user);
+			if (other == null) {
+				output.send("There is no user: " + user);
+			}
+			// add user to block list, kept by his shard
+			else {
+				final Session blocked = other;
+				final int blocker = session.id;
+				onShard(other, new Runnable() {
+					@Override
+					public void run() {
+						blocked.blockedBy(blocker);
+					}
+				});
+				// the node he lives on checks his messages
+				if (cluster != null && !cluster.isHome(other.id)) {
+					cluster.block(session, other, true);
+				}
+				output.send("User " + user + " has been blocked");
+			}
+		}
+
+		// handle unblock command: to unblock a user
+		public void unblock(String user) throws IOException {
+			// if receiver is not a valid username, alert the user
+			Session other = session(user);
+			if (other == null) {
+				output.send("There is no user: " + user);
+			}
+			// remove user from block list
+			else {
+				final Session blocked = other;
+				final int blocker = session.id;
+				onShard(other, new Runnable() {
+					@Override
+					public void run() {
+						blocked.unblockedBy(blocker);
+					}
+				});
+				if (cluster != null && !cluster.isHome(other.id)) {
+					cluster.block(session, other, false);
+				}
+				output.send("User " + user + " has been unblocked");
 			}
-			
-		}		
-		
-		
+
+		}
+
+
 		// handle getaddress command: to get the address of a certain user
 		public void getAddress(String user) throws IOException{
 			// if receiver is not a valid username, alert the user
-			if (!allUsers.contains(user)) {
-				output.writeUTF("There is no user: " + user);
-				output.flush();
+			Session other = session(user);
+			if (other == null) {
+				output.send("There is no user: " + user);
 				return;
-			} 
-			// if current user is blocked by this user, can't get address
-			if (blockedBy.containsKey(username)){
-				if (blockedBy.get(username).contains(user)) { 
-					output.writeUTF("You are blocked by " + user + ". Can't get his/her address.");
-					output.flush();
-					return;
-				} 
 			}
-			
-			// if this user is not logged in, can't get address
-			if (!loggedInUsersWithIP.containsKey(user)){
-				output.writeUTF(user + " is not logged in. Can't get his/her address.");
-				output.flush();
+			// if current user is blocked by this user, can't get address
+			if (session.isBlockedBy(other.id)) {
+				output.send("You are blocked by " + user + ". Can't get his/her address.");
+				return;
 			}
-			else {
-				
-				output.writeUTF("#" + user + " " + loggedInUsersWithIP.get(user) + " " + loggedInUsersWithPort.get(user));
-				output.flush();
+			// only the node he lives on knows where he is, it answers
+			if (cluster != null && !cluster.isHome(other.id)) {
+				if (!cluster.getAddress(session, other)) {
+					output.send(user + " is on a server that can't be reached now.");
+				}
+				return;
 			}
-			
-			
+
+			// his shard answers with where he is now
+			final Session of = other;
+			onShard(other, new Runnable() {
+				@Override
+				public void run() {
+					// if this user is not logged in, can't get address
+					if (!of.isLoggedIn()){
+						reply(of.name + " is not logged in. Can't get his/her address.");
+					}
+					else {
+						reply(Frame.address(of.name, of.getIP(), of.getPort()));
+					}
+				}
+			});
+
 		}
-		
+
 		// handle private command: to establish private chat with another user
 		public void getConsent(String user) throws IOException{
-			
-			// notify user B and get his consent
-			boolean accept = false;
-			Socket tempSocket = null;
-			DataOutputStream out;
-			DataInputStream in;
-
-			tempSocket = new Socket(loggedInUsersWithIP.get(user), loggedInUsersWithPort.get(user));
-			connectedUsers.put(user, tempSocket);
-			out = new DataOutputStream(tempSocket.getOutputStream());
-			in = new DataInputStream(tempSocket.getInputStream());
-			
-			out.writeUTF("#server");
-			out.flush();
-			out.writeUTF(username + "wants to privately chat with you.");
-			out.flush();
-			
-			boolean redo = true;
-			do{
-				out.writeUTF("Do you accept the request? (Y/N)");
-				out.flush();
-				String ans = in.readUTF();
-				if (ans.equals("Y") || ans.equals("y")){
-					accept = true;
-					redo = false;
-				}
-				else if (ans.equals("N") || ans.equals("n")){
-					accept = false;
-					redo = false;
-				}
-			} while (redo);
-			
-			// if user B accept A's private chat request, give B's ip and port to A
-			// else, notify A.
-			if (accept){
-				output.writeUTF("$Yes "+user);
-				output.flush();
-			} else {
-				output.writeUTF("$No "+user);
-				output.flush();
+			Session other = session(user);
+			if (other == null) {
+				output.send("There is no user: " + user);
+				return;
 			}
-		}	
-		
-			
-	
-		
-		// login process: check if a user has a valid username and password
-		// return the logged in username
-		public String login() {
-			boolean login = false;
-			String name = "";
-			
-			try{
-
-				while (!login) {
-					
-					String identity = getIdentity();
-				
-					// if user's information is consistent with given
-					// credentials, change login to true
-					if (userCredentials.contains(identity)) {
-						login = true;
-					}
-					String[] id = identity.split(" ");
-					name = id[0];
-					
-					// if the user is still blocked, ask user to try again,
-					// change login to false and restart the inner loop
-					// if the user is not blocked and login is true, then break
-					// the inner loop
-					if (checkBlock(name)) {
-						output.writeUTF("Due to multiple login failures, your account has been blocked."
-								+ "\r\nPlease try again after sometime.");
-						output.flush();
-						login = false;
-						continue;
+			if (cluster != null && !cluster.isHome(other.id)) {
+				output.send(user + " is on another server, private chat across servers is not supported.");
+				return;
+			}
+			// the request is kept in his session, his shard handles it
+			final Session asked = other;
+			final int requester = session.id;
+			onShard(other, new Runnable() {
+				@Override
+				public void run() {
+					if (!asked.isLoggedIn()) {
+						reply(asked.name + " is not logged in.");
+						return;
 					}
-					
-					// if not blocked, update login time of this username
-					if (userLoginTimes.containsKey(name)){
-						//(login times + 1) % 3, keep login time always < 3
-						userLoginTimes.put(name, (userLoginTimes.get(name) + 1) % 3);
-					} else{
-						userLoginTimes.put(name, 0);
-					}
-					int times = userLoginTimes.get(name);
-
-					// login successful!
-					if (login) {
-						// if user is logged in from another place, logout the previous one
-						if (loggedInUsersWithIP.containsKey(name)){
-							// if the user is connected now, send logout info
-							if (connectedUsers.containsKey(name)) {
-								DataOutputStream out = new DataOutputStream(connectedUsers.get(name).getOutputStream());
-								out.writeUTF("logout");
-								out.flush();
-								connectedUsers.remove(name);
-							}
-							// else: user is logged in, but not connected now
-							// contact user, create socket, send logout info
-							else {
-								Socket newSocket = new Socket(loggedInUsersWithIP.get(name), loggedInUsersWithPort.get(name));
-								DataOutputStream out = new DataOutputStream(newSocket.getOutputStream());
-								out.writeUTF("logout");
-								out.flush();
-								newSocket.close();
-							}
-							loggedInUsersWithIP.remove(name);
-							loggedInUsersWithPort.remove(name);
-							
-						}
-						
-						output.writeUTF("Welcome to simple chat server!");
-						output.flush();
-						// show the available commands to user
-						showCommands();
-						// if there are offline messages, pass to user
-						
-						if (offlineMsg.containsKey(name)){
-							output.writeUTF("Here is your offline messages:");
-							output.flush();
-							List<String> list = new ArrayList<String>(offlineMsg.get(name));
-							for (String msg : list){
-								output.writeUTF(msg);
-								output.flush();
-							}
-							output.writeUTF("================================");
-							output.flush();
-							offlineMsg.remove(name);
-							
-						}
-						
-						
-						// pass the successfully logged in name back to user
-						output.writeUTF("*" + name);
-						output.flush();
-						
-						System.out.println(name + " logged in");
-						
-						// remove this user from login times list
-						userLoginTimes.remove(name);
-						
-						// get the user's server socket info
-						String str;
-						try {
-							str = input.readUTF();
-							if (str.charAt(0) == '#') {
-								clientServerSocketIP = socket.getRemoteSocketAddress().toString();
-								clientServerSocketIP = clientServerSocketIP.replaceAll("\\:([0-9]+)", "");
-								clientServerSocketIP = clientServerSocketIP.substring(1);
-								clientServerSocketPort = Integer.parseInt(str.substring(1));
-							}
 
-						} catch (IOException e) {
-							//e.printStackTrace();
-						}
-						loggedInUsersWithIP.put(name, clientServerSocketIP);
-						loggedInUsersWithPort.put(name, clientServerSocketPort);
-						username = name;
-					}
-
-					// if login failed, ask user to login again
-					if (!login) {
-						if (times < 2){
-							output.writeUTF("Invalid Password. Please try again");
-							output.flush();
-						} else {
-							output.writeUTF("Invalid Password. Your account has been blocked. "
-									+ "Please try again after sometime.");
-							output.flush();
-							// add user name and block start time to lists
-							String[] iden = identity.split(" ");
-							blockedUsers.put(iden[0], System.currentTimeMillis());
-						}
+					// he agreed to chat with this user before, during this login
+					if (asked.hasConsented(requester)) {
+						reply(Frame.consent(asked.name, true));
+						return;
 					}
 
+					// record the request and ask him, the answer comes back as a
+					// command of his own and this user is told then
+					int request = asked.askConsent(requester);
+					if (request < 0) {
+						reply(asked.name + " is answering another private chat request. Please try again later.");
+						return;
+					}
+					enqueue(asked, Frame.text(username + " wants to privately chat with you."));
+					enqueue(asked, Frame.text("Do you accept the request? (Y/N)"));
+					reply("Private chat request sent to " + asked.name + ".");
+					timers.schedule(new ConsentTimeout(asked, request), CONSENT_TIMEOUT, TimeUnit.MILLISECONDS);
 				}
+			});
+		}
 
-			} catch(IOException e){
-				//e.printStackTrace();
+		// this user answered the private chat request of another user
+		private void answerConsent(boolean accept) throws IOException {
+			int requester = session.takeConsentRequester();
+			if (requester < 0) {
+				return;
+			}
+			if (accept) {
+				session.consented(requester);
+			}
+			Session other = sessions[requester];
+			if (other.isLoggedIn()) {
+				enqueue(other, Frame.consent(username, accept));
 			}
-			
-			return name;
 		}
 
-		// check if the current user is blocked for login in
-		private boolean checkBlock(String name) {
-			boolean blocked = false;
 
-			// if the name is in block list
-			if (blockedUsers.containsKey(name)) {
 
-				// if block time has passed, remove name and block start time
-				// from lists
-				if ((System.currentTimeMillis() - blockedUsers.get(name)) >= BLOCK_TIME) {
-					blockedUsers.remove(name);
-					blocked = false;
-				} else {
-					blocked = true;
-				}
+
+		// login process: check if a user has a valid username and password
+		// with the identity the user has just typed in
+		public void login(String identity) throws IOException {
+			boolean login = false;
+
+			// if user's information is consistent with given
+			// credentials, change login to true
+			int id = users.id(name);
+			if (id >= 0 && userCredentials.get(id).equals(identity)) {
+				login = true;
 			}
 
-			return blocked;
-		}
+			// if the user is still blocked, ask user to try again
+			if (checkBlock(name)) {
+				output.send("Due to multiple login failures, your account has been blocked."
+						+ "\r\nPlease try again after sometime.");
+				askUsername();
+				return;
+			}
 
-		// promp to the user to get username and password input
-		public String getIdentity() {
-			String identity = "";
+			// if not blocked, update login time of this username
+			LoginAttempts attempts = loginAttempts(name);
+			int times = attempts.loginAttempt();
 
-			try {
-				// get name from client
-				output.writeUTF("Username: ");
-				output.flush();
-				String name = input.readUTF();
+			// login successful!
+			if (login) {
+				Session user = sessions[id];
+				// if user is logged in from another place, logout the previous one
+				Connection conn = null;
+				boolean previous;
+				synchronized (user) {
+					conn = user.getConnection();
+					previous = user.logout(user.getGeneration());
+					if (previous) {
+						markLoggedOut(user);
+						liveness.remove(user);
+					}
+				}
+				if (previous){
+					// if the user is connected now, send logout info. A
+					// connection that is gone does not stop the new login
+					if (conn != null) {
+						try {
+							conn.send(Frame.of(Frame.LOGOUT));
+						} catch (IOException e) {
+							// the old client is gone already
+						}
+					}
+					// else: user is logged in, but not connected now
+					// contact user, create socket, send logout info, off this
+					// thread so that an unreachable client does not hold up
+					// the new login or an event loop
+					else if (!user.isPersistent()) {
+						final String ip = user.getIP();
+						final int port = user.getPort();
+						final boolean binary = user.isBinary();
+						final boolean compress = user.isCompressed();
+						writers.execute(new Runnable() {
+							public void run() {
+								callOff(ip, port, binary, compress);
+							}
+						});
+					}
 
-				// get possword from client
-				output.writeUTF("Password: ");
-				output.flush();
-				String password = input.readUTF();
+				}
 
-				identity = name + " " + password;
-			} catch (IOException e) {
-				//e.printStackTrace();
+				output.send("Welcome to simple chat server!");
+				// show the available commands to user
+				showCommands();
+
+				// pass the successfully logged in name back to user
+				output.send(Frame.user(Frame.LOGGED_IN, name));
+
+				System.out.println(name + " logged in");
+
+				// reset the login times of this user
+				attempts.loginSucceeded();
+
+				// the client answers with the port of its server socket
+				state = SERVER_PORT;
+				return;
+			}
+
+			// if login failed, ask user to login again
+			if (times < 2){
+				output.send("Invalid Password. Please try again");
+			} else {
+				output.send("Invalid Password. Your account has been blocked. "
+						+ "Please try again after sometime.");
+				// record the block start time of the name
+				attempts.blockLogin();
 			}
-			return identity;
+			askUsername();
+		}
+
+		// check if the current user is blocked for login in
+		private boolean checkBlock(String name) {
+			return loginAttempts(name).isLoginBlocked(BLOCK_TIME);
+		}
+
+		// promp to the user to get username, the password is asked once it arrives
+		public void askUsername() throws IOException {
+			output.send("Username: ");
+			state = USERNAME;
 		}
 
-	
+
 
 		public void showCommands() {
 			try {
-				output.writeUTF("=====Available Commands=====\r\n"
+				output.send("=====Available Commands=====\r\n"
 						+ "message <user> <message>\r\n"
-						+ "broadcast <message>\r\n" + "online\r\n"
+						+ "broadcast <message>\r\n" + "online [<page>|count]\r\n"
 						+ "block <user>\r\n" + "unblock <user>\r\n"
 						+ "logout\r\n" + "getaddress <user>\r\n"
 						+ "private <user> <message>\r\n"
+						+ "offline\r\n"
+						+ "join <room>\r\n" + "leave <room>\r\n"
+						+ "room <room> <message>\r\n"
 						+ "===========================");
-				output.flush();
 			} catch (IOException e) {
 				//e.printStackTrace();
 
@@ -785,9 +2945,109 @@ public class Server {
 
 		}
 
-	}	
+	}
+
+	/*
+	 * Options holds the optional settings given after the port on the command line
+	 * */
+	public static class Options {
+		// serve clients from a few selector threads instead of a thread per socket
+		public boolean nio = false;
+		public int eventLoops = Runtime.getRuntime().availableProcessors();
+		// run every connection and blocking send on its own virtual thread
+		public boolean virtual = false;
+		// take heartbeats as udp datagrams, on the server port if udpPort is 0
+		public boolean udp = false;
+		public int udpPort = 0;
+		// how many frames can wait for a user, and what happens to the next one
+		public int queueSize = 1024;
+		public int overflow = Outbox.SPILL;
+		// the directory the offline messages are kept in
+		public String offlineDir = "offline";
+		// the file with a "username password" line for each user
+		public String credentialPath = "credentials.txt";
+		// the users who may use the stats command
+		public Set<String> admins = new HashSet<String>();
+		// the local port of the http endpoint for the metrics, 0 for none
+		public int statsPort = 0;
+		// how many threads own the users, 0 to change them on the threads
+		// serving the connections
+		public int shards = 0;
+		// send small frames at once instead of waiting for more to fill a packet
+		public boolean noDelay = false;
+		// the "ip:port" of every server of the cluster, the same list on
+		// each, and which of them this one is. null if not in a cluster
+		public List<String> clusterNodes = null;
+		public int clusterNode = 0;
+		// what a node has to know to link to this one, null for none
+		public String clusterSecret = null;
+
+		// parse "-nio [loops]", "-virtual", "-udp [port]",
+		// "-queue <size> [drop|spill|disconnect]", "-offline <dir>",
+		// "-credentials <file>", "-admin <user>[,<user>...]", "-stats <port>",
+		// "-cluster <index> <ip:port>,<ip:port>... [secret]", "-shards [n]" and "-nodelay"
+		public static Options parse(String args[], int from) {
+			Options options = new Options();
+			for (int i = from; i < args.length; i++) {
+				if (args[i].equals("-nio")) {
+					options.nio = true;
+					if (i + 1 < args.length && args[i + 1].matches("[0-9]+")) {
+						options.eventLoops = Integer.parseInt(args[++i]);
+					}
+				} else if (args[i].equals("-virtual")) {
+					options.virtual = true;
+				} else if (args[i].equals("-udp")) {
+					options.udp = true;
+					if (i + 1 < args.length && args[i + 1].matches("[0-9]+")) {
+						options.udpPort = Integer.parseInt(args[++i]);
+					}
+				} else if (args[i].equals("-queue") && i + 1 < args.length && args[i + 1].matches("[0-9]+")) {
+					options.queueSize = Integer.parseInt(args[++i]);
+					if (i + 1 < args.length && args[i + 1].equals("drop")) {
+						options.overflow = Outbox.DROP;
+						i++;
+					} else if (i + 1 < args.length && args[i + 1].equals("spill")) {
+						options.overflow = Outbox.SPILL;
+						i++;
+					} else if (i + 1 < args.length && args[i + 1].equals("disconnect")) {
+						options.overflow = Outbox.DISCONNECT;
+						i++;
+					}
+				} else if (args[i].equals("-offline") && i + 1 < args.length) {
+					options.offlineDir = args[++i];
+				} else if (args[i].equals("-credentials") && i + 1 < args.length) {
+					options.credentialPath = args[++i];
+				} else if (args[i].equals("-admin") && i + 1 < args.length) {
+					options.admins.addAll(Arrays.asList(args[++i].split(",")));
+				} else if (args[i].equals("-stats") && i + 1 < args.length && args[i + 1].matches("[0-9]+")) {
+					options.statsPort = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-shards")) {
+					options.shards = Runtime.getRuntime().availableProcessors();
+					if (i + 1 < args.length && args[i + 1].matches("[0-9]+")) {
+						options.shards = Math.max(Integer.parseInt(args[++i]), 1);
+					}
+				} else if (args[i].equals("-nodelay")) {
+					options.noDelay = true;
+				} else if (args[i].equals("-cluster") && i + 2 < args.length && args[i + 1].matches("[0-9]+")
+						&& args[i + 2].matches("[^,:]+:[0-9]+(,[^,:]+:[0-9]+)*")) {
+					options.clusterNode = Integer.parseInt(args[++i]);
+					options.clusterNodes = Arrays.asList(args[++i].split(","));
+					if (i + 1 < args.length && !args[i + 1].startsWith("-")) {
+						options.clusterSecret = args[++i];
+					}
+					if (options.clusterNode >= options.clusterNodes.size()) {
+						System.out.println("There is no node " + options.clusterNode + " in the cluster");
+						options.clusterNodes = null;
+					}
+				} else {
+					System.out.println("Unknown option: " + args[i]);
+				}
+			}
+			return options;
+		}
+	}
 
 	public static void main(String args[]) throws IOException {
-		new Server(Integer.parseInt(args[0]));
+		new Server(Integer.parseInt(args[0]), Options.parse(args, 1));
 	}
 }
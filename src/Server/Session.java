@@ -0,0 +1,260 @@
+/* Author: Hua Tong
+ * Uni: ht2334
+ * */
+package Server;
+
+import java.security.SecureRandom;
+
+/* Class Session
+ * Everything the server keeps about one registered user, in one place
+ * instead of a table per property. Fields are read without locking;
+ * changes that touch more than one field hold the lock of the session, so
+ * two users never wait on each other
+ *
+ * */
+public class Session {
+	// gives out the tokens of udp heartbeats
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	// the id the server gave the username, -1 for a name that is not registered
+	public final int id;
+	public final String name;
+
+	// set while the user is logged in
+	private volatile boolean loggedIn = false;
+	// counts logins, so a connection of an earlier login can't log out a later one
+	private volatile int generation = 0;
+	// the ip and port of the client's server socket
+	private volatile String ip;
+	private volatile int port;
+	// the connection the user is connected by now, null if not connected
+	private volatile Server.Connection connection;
+	// the client keeps one connection open, the server never connects back
+	private volatile boolean persistent = false;
+	// the client speaks the binary protocol
+	private volatile boolean binary = false;
+	// the client takes compressed frames
+	private volatile boolean compress = false;
+	// the last time the user sent a heartbeat
+	private volatile long heartbeat;
+	// a udp heartbeat has to carry this, a new one for each login
+	private volatile long token;
+
+	// the login attempts in a row, and the block they bring
+	private final LoginAttempts loginAttempts = new LoginAttempts();
+
+	// the ids of the users who blocked this user
+	private final UserSet blockedBy = new UserSet();
+	// the id of the user who asked this user for a private chat and waits
+	// for the answer (-1 if none), and the number of that request
+	private int consentRequester = -1;
+	private int consentRequest = 0;
+	// the ids of the users this user agreed to chat with during this login
+	private final UserSet consented = new UserSet();
+	// what other users sent him that has not been written yet
+	private final Outbox outbox = new Outbox();
+	// the login for which a page of offline messages is being written (0 if
+	// none), and how many more pages the user asked for meanwhile
+	private int offlineSending = 0;
+	private int offlineAsked = 0;
+
+	// the slot of the timing wheel the session is in (-1 if none) and its
+	// neighbours there, only used while holding the wheel's lock
+	int wheelSlot = -1;
+	Session wheelPrev;
+	Session wheelNext;
+
+	public Session(int id, String name) {
+		this.id = id;
+		this.name = name;
+	}
+
+	public boolean isLoggedIn() {
+		return loggedIn;
+	}
+
+	public int getGeneration() {
+		return generation;
+	}
+
+	public String getIP() {
+		return ip;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public Server.Connection getConnection() {
+		return connection;
+	}
+
+	public boolean isPersistent() {
+		return persistent;
+	}
+
+	public boolean isBinary() {
+		return binary;
+	}
+
+	public boolean isCompressed() {
+		return compress;
+	}
+
+	public long getHeartbeat() {
+		return heartbeat;
+	}
+
+	public void heartbeat() {
+		heartbeat = System.currentTimeMillis();
+	}
+
+	public long getToken() {
+		return token;
+	}
+
+	public Outbox getOutbox() {
+		return outbox;
+	}
+
+	// the user logged in, returns the generation of this login
+	public int login(String ip, int port, boolean persistent, boolean binary) {
+		return login(ip, port, persistent, binary, false);
+	}
+
+	public synchronized int login(String ip, int port, boolean persistent, boolean binary, boolean compress) {
+		this.ip = ip;
+		this.port = port;
+		this.persistent = persistent;
+		this.binary = binary;
+		this.compress = compress;
+		heartbeat = System.currentTimeMillis();
+		token = RANDOM.nextLong();
+		loggedIn = true;
+		consentRequester = -1;
+		consented.clear();
+		offlineAsked = 0;
+		return ++generation;
+	}
+
+	// log the user out if he is still logged in by the given login
+	public synchronized boolean logout(int generation) {
+		if (!loggedIn || this.generation != generation) {
+			return false;
+		}
+		loggedIn = false;
+		connection = null;
+		consentRequester = -1;
+		return true;
+	}
+
+	// log the user out if he has not sent a heartbeat since the given time
+	public synchronized boolean expire(long before) {
+		if (!loggedIn || heartbeat >= before) {
+			return false;
+		}
+		loggedIn = false;
+		connection = null;
+		consentRequester = -1;
+		return true;
+	}
+
+	// the user is connected by conn, replacing the connection he had unless keep is set
+	public synchronized void connect(Server.Connection conn, boolean keep) {
+		if (!keep || connection == null) {
+			connection = conn;
+		}
+	}
+
+	// conn has been closed, forget it if it is still the user's connection
+	public synchronized void disconnect(Server.Connection conn) {
+		if (connection == conn) {
+			connection = null;
+		}
+	}
+
+	public LoginAttempts getLoginAttempts() {
+		return loginAttempts;
+	}
+
+	public boolean isBlockedBy(int user) {
+		return blockedBy.contains(user);
+	}
+
+	public void blockedBy(int user) {
+		blockedBy.add(user);
+	}
+
+	public void unblockedBy(int user) {
+		blockedBy.remove(user);
+	}
+
+	public UserSet getBlockedBy() {
+		return blockedBy;
+	}
+
+	// record a private chat request, returns its number, or -1 if the user
+	// is asked by someone else already. He answers one request at a time
+	public synchronized int askConsent(int requester) {
+		if (consentRequester >= 0) {
+			return -1;
+		}
+		consentRequester = requester;
+		return ++consentRequest;
+	}
+
+	public synchronized boolean hasConsentRequest() {
+		return consentRequester >= 0;
+	}
+
+	// take the user waiting for this user's answer, -1 if there is none
+	public synchronized int takeConsentRequester() {
+		int requester = consentRequester;
+		consentRequester = -1;
+		return requester;
+	}
+
+	// the request has not been answered in time, take its requester if it
+	// is still the one waiting
+	public synchronized int expireConsent(int request) {
+		if (consentRequester < 0 || consentRequest != request) {
+			return -1;
+		}
+		return takeConsentRequester();
+	}
+
+	// start sending a page of offline messages, returns the login it is for,
+	// or 0 if a page is being sent already. Asking meanwhile is kept for
+	// when that page is done
+	public synchronized int startOffline(boolean asked) {
+		if (offlineSending == generation) {
+			if (asked) {
+				offlineAsked++;
+			}
+			return 0;
+		}
+		offlineSending = generation;
+		return generation;
+	}
+
+	// the page of a login is done, true if the user asked for another one
+	public synchronized boolean endOffline(int login) {
+		if (offlineSending != login) {
+			return false;
+		}
+		offlineSending = 0;
+		if (offlineAsked == 0) {
+			return false;
+		}
+		offlineAsked--;
+		return true;
+	}
+
+	public boolean hasConsented(int user) {
+		return consented.contains(user);
+	}
+
+	public void consented(int user) {
+		consented.add(user);
+	}
+}
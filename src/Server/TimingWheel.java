@@ -0,0 +1,128 @@
+/* Author: Hua Tong
+ * Uni: ht2334
+ * */
+package Server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/* Class TimingWheel
+ * A hashed timing wheel for the heartbeats of logged in users. Time is cut
+ * into ticks and every tick has a slot, a linked list of the sessions whose
+ * heartbeat runs out in that tick. A heartbeat moves the session to the slot
+ * of its new deadline, and every tick only looks at the sessions of one
+ * slot, so the cost does not grow with the number of users online.
+ * There are more slots than ticks in the timeout, so a slot only ever holds
+ * sessions that are due when it comes round
+ *
+ * */
+public abstract class TimingWheel {
+	private final long tick;
+	private final long timeout;
+	private final Session[] slots;
+	// the last tick whose slot has been handled
+	private long current;
+	// turns the wheel every tick, null if it is turned by hand
+	private ScheduledExecutorService exec;
+
+	// a wheel that only turns when advance is called
+	public TimingWheel(long tick, long timeout) {
+		this.tick = tick;
+		this.timeout = timeout;
+		slots = new Session[(int) (timeout / tick) + 2];
+		current = System.currentTimeMillis() / tick;
+	}
+
+	public TimingWheel(long tick, long timeout, ThreadFactory threads) {
+		this(tick, timeout);
+
+		exec = Executors.newSingleThreadScheduledExecutor(threads);
+		exec.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				advance(System.currentTimeMillis());
+			}
+		}, tick, tick, TimeUnit.MILLISECONDS);
+	}
+
+	public void stop() {
+		if (exec != null) {
+			exec.shutdownNow();
+		}
+	}
+
+	// called on the wheel's thread once a session has sent no heartbeat for
+	// the timeout
+	protected abstract void expired(Session session);
+
+	// (re)start the timeout of a session from its last heartbeat
+	public synchronized void schedule(Session session) {
+		unlink(session);
+		// round up, so the session never expires early, and never into a
+		// slot that has already been handled
+		long deadline = session.getHeartbeat() + timeout;
+		long at = Math.max((deadline + tick - 1) / tick, current + 1);
+		int slot = (int) (at % slots.length);
+		session.wheelSlot = slot;
+		session.wheelNext = slots[slot];
+		if (slots[slot] != null) {
+			slots[slot].wheelPrev = session;
+		}
+		slots[slot] = session;
+	}
+
+	public synchronized void remove(Session session) {
+		unlink(session);
+	}
+
+	private void unlink(Session session) {
+		if (session.wheelSlot < 0) {
+			return;
+		}
+		if (session.wheelPrev != null) {
+			session.wheelPrev.wheelNext = session.wheelNext;
+		} else {
+			slots[session.wheelSlot] = session.wheelNext;
+		}
+		if (session.wheelNext != null) {
+			session.wheelNext.wheelPrev = session.wheelPrev;
+		}
+		session.wheelPrev = null;
+		session.wheelNext = null;
+		session.wheelSlot = -1;
+	}
+
+	// handle the slots of every tick up to now (in milliseconds), a late
+	// run catches up
+	public void advance(long now) {
+		List<Session> due = new ArrayList<Session>();
+		synchronized (this) {
+			long ticks = now / tick;
+			while (current < ticks) {
+				current++;
+				Session session = slots[(int) (current % slots.length)];
+				while (session != null) {
+					Session next = session.wheelNext;
+					unlink(session);
+					due.add(session);
+					session = next;
+				}
+			}
+		}
+
+		// logging out talks to the client, which is done without holding the wheel
+		for (Session session : due) {
+			expired(session);
+			// a heartbeat that came in just now kept him logged in
+			synchronized (this) {
+				if (session.isLoggedIn() && session.wheelSlot < 0) {
+					schedule(session);
+				}
+			}
+		}
+	}
+}
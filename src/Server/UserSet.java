@@ -0,0 +1,49 @@
+/* Author: Hua Tong
+ * Uni: ht2334
+ * */
+package Server;
+
+import java.util.BitSet;
+
+/* Class UserSet
+ * A set of user ids kept as a bitmap, one bit per registered user. Adding
+ * and removing a user flips one bit, and a whole set can be taken away
+ * from another with one AND-NOT over the words of the bitmaps. Every
+ * method holds the lock of the set, which is only ever held for a bit flip
+ * or one pass over the words
+ *
+ * */
+public class UserSet {
+	private final BitSet bits = new BitSet();
+
+	public synchronized void add(int id) {
+		bits.set(id);
+	}
+
+	public synchronized void remove(int id) {
+		bits.clear(id);
+	}
+
+	public synchronized void clear() {
+		bits.clear();
+	}
+
+	public synchronized boolean contains(int id) {
+		return id >= 0 && bits.get(id);
+	}
+
+	// a copy of the set to work on without holding the lock
+	public synchronized BitSet snapshot() {
+		return (BitSet) bits.clone();
+	}
+
+	// take the users of this set out of the given ones
+	public synchronized void removeFrom(BitSet users) {
+		users.andNot(bits);
+	}
+
+	// true if one of the given users is in this set
+	public synchronized boolean intersects(BitSet users) {
+		return bits.intersects(users);
+	}
+}
@@ -0,0 +1,85 @@
+/* Author: Hua Tong
+ * Uni: ht2334
+ * */
+package Server;
+
+/* Class UserTable
+ * Gives every registered username a dense int id, 0, 1, 2, ... in the
+ * order they are added. Names are kept in an open addressing table of
+ * plain arrays, so finding an id is one hash and a few compares, with no
+ * boxing and no entry objects. It is filled before the server starts
+ * accepting and only read afterwards, so reads need no lock
+ *
+ * */
+public class UserTable {
+	// the slots of the hash table, an empty slot has a null name
+	private String[] slots = new String[16];
+	private int[] slotIds = new int[16];
+	// the names by id
+	private String[] names = new String[8];
+	private int size = 0;
+
+	// add a name, returns its id. A name that is there already keeps its id
+	public int add(String name) {
+		int id = id(name);
+		if (id >= 0) {
+			return id;
+		}
+		// keep the table at most half full
+		if ((size + 1) * 2 > slots.length) {
+			grow();
+		}
+		if (size == names.length) {
+			String[] larger = new String[names.length * 2];
+			System.arraycopy(names, 0, larger, 0, size);
+			names = larger;
+		}
+		id = size++;
+		names[id] = name;
+		put(name, id);
+		return id;
+	}
+
+	// the id of a name, -1 if it is not registered
+	public int id(String name) {
+		int mask = slots.length - 1;
+		for (int i = hash(name) & mask; slots[i] != null; i = (i + 1) & mask) {
+			if (slots[i].equals(name)) {
+				return slotIds[i];
+			}
+		}
+		return -1;
+	}
+
+	public String name(int id) {
+		return names[id];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	private void put(String name, int id) {
+		int mask = slots.length - 1;
+		int i = hash(name) & mask;
+		while (slots[i] != null) {
+			i = (i + 1) & mask;
+		}
+		slots[i] = name;
+		slotIds[i] = id;
+	}
+
+	private void grow() {
+		slots = new String[slots.length * 2];
+		slotIds = new int[slots.length];
+		for (int id = 0; id < size; id++) {
+			put(names[id], id);
+		}
+	}
+
+	// spread the bits of the string hash, the table only uses the low ones
+	private static int hash(String name) {
+		int h = name.hashCode();
+		return h ^ (h >>> 16);
+	}
+}